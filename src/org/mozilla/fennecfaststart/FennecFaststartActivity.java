@@ -19,6 +19,14 @@ public class FennecFaststartActivity extends Activity {
         mController.start();
     }
 
+    @Override
+    public void onPause()
+    {
+        if (mController != null)
+            mController.pause();
+        super.onPause();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         mController.createMenu(menu);
@@ -37,130 +37,395 @@
 
 package org.mozilla.gecko;
 
-import org.mozilla.gecko.gfx.BufferedCairoImage;
+import org.mozilla.gecko.gfx.BufferSwapChain;
 import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.DisplayItem;
+import org.mozilla.gecko.gfx.DisplayList;
+import org.mozilla.gecko.gfx.ETC1Compressor;
 import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.IntPoint;
 import org.mozilla.gecko.gfx.IntRect;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.LayerClient;
 import org.mozilla.gecko.gfx.LayerController;
-import org.mozilla.gecko.gfx.SingleTileLayer;
+import org.mozilla.gecko.gfx.RenderScheduler;
+import org.mozilla.gecko.gfx.SharedCairoImage;
+import org.mozilla.gecko.gfx.TextDisplayItem;
+import org.mozilla.gecko.gfx.TextRunCache;
+import org.mozilla.gecko.gfx.TileCache;
+import org.mozilla.gecko.gfx.TileLayer;
+import org.mozilla.gecko.gfx.TiledLayer;
 import org.mozilla.gecko.ui.ViewportController;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FakeGeckoLayerClient extends LayerClient {
-    private Bitmap mBitmap;
-    private ByteBuffer mBuffer;
-    private AsyncTask<Object,Object,BufferedCairoImage> mRenderTask;
-    private boolean mRenderTaskQueued;
-    private SingleTileLayer mTileLayer;
+    private BufferSwapChain mSwapChain;
+    private ExecutorService mRasterExecutor;
+    private RenderJob mRenderJob;
+    private RenderScheduler mRenderScheduler;
+    private TiledLayer mTiledLayer;
     private ViewportController mViewportController;
+    private DisplayList mDisplayList;
+    private int mLowResGeneration;
 
     private static final int PAGE_WIDTH = 2500;
     private static final int PAGE_HEIGHT = 2500;
 
+    private static final int TILE_CACHE_BUDGET = 16 * 1024 * 1024;
+    private static final float LOW_RES_SCALE = 0.25f;
+    private static final int TEXT_RUN_CACHE_BUDGET = 4 * 1024 * 1024;
+
+    private static final int RASTER_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    /* Tiles are independent, so they're rasterized on as many threads as there are cores. */
+
+    private static final int SWAP_CHAIN_LENGTH = RASTER_THREAD_COUNT + 2;
+    /* One bitmap per raster thread, plus one waiting for upload and one being uploaded. */
+
+    /* Each raster thread has a canvas of its own, pointed at whichever bitmap it acquires. */
+    private static final ThreadLocal<Canvas> sRasterCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() { return new Canvas(); }
+    };
+
+    private static final long BUFFER_WAIT_INTERVAL = 100;
+    private static final int BUFFER_WAIT_ATTEMPTS = 10;
+    /*
+     * How long the raster thread waits for a free bitmap, in slices so that it notices when the
+     * render is cancelled. If the GL thread isn't uploading (because the view is paused, say),
+     * the render gives up and the remaining tiles are picked up by the next one.
+     */
+
     public FakeGeckoLayerClient() {
         super();
         mViewportController = new ViewportController(new IntSize(PAGE_WIDTH, PAGE_HEIGHT),
                                                      new FloatRect(0.0f, 0.0f, 1.0f, 1.0f));
+        mDisplayList = recordPage();
+
+        mRenderScheduler = new RenderScheduler() {
+            @Override
+            protected void onStartRender(int generation) {
+                startRenderJob(generation);
+            }
+
+            @Override
+            protected void onCancelRender() {
+                /*
+                 * Tiles that haven't started yet are skipped, but the ones being rasterized are
+                 * finished and still painted, since the page hasn't changed underneath them.
+                 * Otherwise a tile that takes longer than a frame would never get done while the
+                 * user is moving.
+                 */
+                mRenderJob.cancel();
+            }
+        };
     }
 
     @Override
     public void init() {
         mViewportController.setVisibleRect(getLayerController().getVisibleRect());
 
-        mTileLayer = new SingleTileLayer();
-        getLayerController().setRoot(mTileLayer);
+        mTiledLayer = new TiledLayer(new TileCache(TILE_CACHE_BUDGET, false));
+        getLayerController().setRoot(mTiledLayer);
 
-        mBuffer = ByteBuffer.allocateDirect(LayerController.TILE_WIDTH *
-                                            LayerController.TILE_HEIGHT * 2);
-        mBitmap = Bitmap.createBitmap(LayerController.TILE_WIDTH, LayerController.TILE_HEIGHT,
-                                      Bitmap.Config.RGB_565);
+        mRasterExecutor = Executors.newFixedThreadPool(RASTER_THREAD_COUNT, new ThreadFactory() {
+            private int mThreadCount = 0;
+
+            public synchronized Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "TileRasterizer #" + ++mThreadCount);
+            }
+        });
+        mSwapChain = new BufferSwapChain(SWAP_CHAIN_LENGTH, TiledLayer.TILE_SIZE,
+                                         TiledLayer.TILE_SIZE, CairoImage.FORMAT_RGB16_565);
 
         render();
+        renderLowResImage();
     }
 
+    /*
+     * Requests a render of the current viewport. If one is already under way, it's cancelled and
+     * a new one starts as soon as it stops, so the last request always gets rendered.
+     */
     @Override
     protected void render() {
-        if (mRenderTask != null) {
-            //mRenderTask.cancel(true);
-            //mRenderTask = null;
-            return;
-        }
-
         if (!getLayerController().getRedrawHint())
             return;
 
+        mRenderScheduler.scheduleRender();
+    }
+
+    private void startRenderJob(int generation) {
         Log.e("Fennec", "### Redrawing");
 
         mViewportController.setVisibleRect(getTransformedVisibleRect());
+        mTiledLayer.setResolution(getResolution());
+
+        /*
+         * Only the tiles that haven't been painted yet need to be rendered. The layer controller
+         * orders them so that the visible ones come first, followed by the tiles the user is
+         * heading toward.
+         */
+        mRenderJob = new RenderJob(generation, getLayerController().getTilesToRender());
+        mRenderJob.start();
+    }
 
-        mRenderTask = new AsyncTask<Object,Object,BufferedCairoImage>() {
-            private FloatRect mViewportRect;
-            private FloatRect mTileRect;
+    /*
+     * Lets long-running drawing bail out partway through. Only the low-resolution render uses
+     * this; tiles are small enough that it's better to finish them.
+     */
+    private interface Cancellable {
+        public boolean isCancelled();
+    }
+
+    /*
+     * One render of the tiles that are missing from the tiled layer. Each tile is rasterized on a
+     * thread of the raster pool, in the order the tiles were given, and handed to the tiled layer
+     * as soon as it's done so that it can be uploaded while other tiles are still being drawn.
+     * When every tile is accounted for, the job reports back to the render scheduler.
+     */
+    private class RenderJob {
+        private final int mGeneration;
+        private final ArrayList<IntPoint> mTiles;
+        private final ArrayList<FloatRect> mViewportRects;
+        private final AtomicInteger mRemainingTileCount;
+        private final AtomicBoolean mCancelled;
+
+        public RenderJob(int generation, ArrayList<IntPoint> tiles) {
+            mGeneration = generation;
+            mTiles = tiles;
+            mRemainingTileCount = new AtomicInteger(tiles.size());
+            mCancelled = new AtomicBoolean(false);
+
+            /* Work out where each tile is on the page up front, so workers don't have to. */
+            IntSize pageSize = getLayerController().getPageSize();
+            mViewportRects = new ArrayList<FloatRect>(tiles.size());
+            for (IntPoint tile : tiles) {
+                FloatRect tileRect = new FloatRect(TiledLayer.getTileRect(tile.x, tile.y));
+                mViewportRects.add(mViewportController.transformVisibleRect(tileRect, pageSize));
+            }
+        }
 
-            protected BufferedCairoImage doInBackground(Object... args) {
-                LayerController layerController = getLayerController();
-                FloatRect visibleRect = layerController.getVisibleRect();
-                mTileRect = layerController.widenRect(visibleRect);
-                mTileRect = layerController.clampRect(mTileRect);
+        public void start() {
+            if (mTiles.isEmpty()) {
+                finish();
+                return;
+            }
 
-                IntSize pageSize = layerController.getPageSize();
-                mViewportRect = mViewportController.transformVisibleRect(mTileRect, pageSize);
+            for (int i = 0; i < mTiles.size(); i++) {
+                final IntPoint tile = mTiles.get(i);
+                final FloatRect viewportRect = mViewportRects.get(i);
+                mRasterExecutor.execute(new Runnable() {
+                    public void run() {
+                        CairoImage image = isCancelled() ? null : renderTile(viewportRect);
+                        if (image != null)
+                            postTile(tile, image);
+                        if (mRemainingTileCount.decrementAndGet() == 0)
+                            postFinish();
+                    }
+                });
+            }
+        }
 
-                //float zoomFactor = getZoomFactor();
-                float zoomFactor = 1.0f;
+        public void cancel() { mCancelled.set(true); }
+        public boolean isCancelled() { return mCancelled.get(); }
 
-                Canvas canvas = new Canvas(mBitmap);
-                canvas.drawRGB(255, 255, 255);
+        /* Called on a raster thread. */
+        private CairoImage renderTile(FloatRect viewportRect) {
+            Bitmap bitmap = acquireBitmap();
+            if (bitmap == null)
+                return null;
 
-                Paint paint = new Paint();
-                paint.setAntiAlias(true);
-                paint.setColor(Color.BLACK);
-                paint.setTextSize(12.0f * zoomFactor);
+            //float zoomFactor = getZoomFactor();
+            float zoomFactor = 1.0f;
 
-                for (int i = 0; i < TEXT.length; i++) {
-                    canvas.drawText(TEXT[i],
-                                    (12.0f - mViewportRect.x) * zoomFactor,
-                                    (12.0f + 12.0f + 14.0f * i - mViewportRect.y) * zoomFactor,
-                                    paint);
+            Canvas canvas = sRasterCanvas.get();
+            canvas.setBitmap(bitmap);
+            canvas.drawRGB(255, 255, 255);
+            drawPage(canvas, viewportRect, zoomFactor, null);
 
-                    if (isCancelled())
-                        return null;
-                }
+            return mSwapChain.publish(bitmap);
+        }
 
-                mBitmap.copyPixelsToBuffer(mBuffer.asIntBuffer());
-                return new BufferedCairoImage(mBuffer,
-                                              LayerController.TILE_WIDTH,
-                                              LayerController.TILE_HEIGHT,
-                                              CairoImage.FORMAT_RGB16_565);
+        private Bitmap acquireBitmap() {
+            try {
+                for (int i = 0; i < BUFFER_WAIT_ATTEMPTS && !isCancelled(); i++) {
+                    Bitmap bitmap = mSwapChain.acquire(BUFFER_WAIT_INTERVAL);
+                    if (bitmap != null)
+                        return bitmap;
+                }
+                if (!isCancelled())
+                    Log.w("Fennec", "Timed out waiting for a tile bitmap");
+            } catch (InterruptedException e) {
+                /* The pool is shutting down. */
             }
+            return null;
+        }
+
+        /*
+         * Each image holds a bitmap of the swap chain, so it has to reach the tiled layer even if
+         * the job has been cancelled in the meantime.
+         */
+        private void postTile(final IntPoint tile, final CairoImage image) {
+            getLayerController().post(new Runnable() {
+                public void run() {
+                    mTiledLayer.paintTile(tile.x, tile.y, image);
+                    image.release();
+                    getLayerController().notifyViewOfGeometryChange();
+                }
+            });
+        }
 
-            protected void onPostExecute(BufferedCairoImage image) {
-                LayerController controller = getLayerController();
-                //controller.unzoom();
-                controller.notifyViewOfGeometryChange();
+        private void postFinish() {
+            getLayerController().post(new Runnable() {
+                public void run() {
+                    finish();
+                }
+            });
+        }
 
-                mViewportController.setVisibleRect(mViewportRect);
+        /* Called on the UI thread. */
+        private void finish() {
+            LayerController controller = getLayerController();
+            //controller.unzoom();
+            controller.notifyViewOfGeometryChange();
 
-                mTileLayer.origin = mTileRect.getOrigin();
-                mTileLayer.paintImage(image);
+            mViewportController.setVisibleRect(getTransformedVisibleRect());
 
-                mRenderTask = null;
-                if (mRenderTaskQueued) {
-                    mRenderTaskQueued = false;
-                    render();
+            mRenderScheduler.renderFinished(mGeneration);
+        }
+    }
+
+    /*
+     * Renders the low-resolution image of the whole page that the tiled layer draws underneath
+     * the tiles.
+     */
+    private void renderLowResImage() {
+        final IntSize pageSize = getLayerController().getPageSize();
+
+        new AsyncTask<Object,Object,CairoImage>() {
+            protected CairoImage doInBackground(Object... args) {
+                int width = (int)Math.ceil(pageSize.width * LOW_RES_SCALE);
+                int height = (int)Math.ceil(pageSize.height * LOW_RES_SCALE);
+                if (!TileLayer.isNPOTSupported()) {
+                    width = nextPowerOfTwo(width);
+                    height = nextPowerOfTwo(height);
                 }
+                SharedCairoImage image = new SharedCairoImage(width, height,
+                                                              CairoImage.FORMAT_RGB16_565);
+
+                FloatRect layerRect = new FloatRect(0.0f, 0.0f, pageSize.width, pageSize.height);
+                FloatRect viewportRect =
+                    mViewportController.transformVisibleRect(layerRect, pageSize);
+
+                Canvas canvas = new Canvas(image.getBitmap());
+                canvas.drawRGB(255, 255, 255);
+                canvas.scale(LOW_RES_SCALE, LOW_RES_SCALE);
+
+                final AsyncTask<?,?,?> task = this;
+                Cancellable cancellable = new Cancellable() {
+                    public boolean isCancelled() { return task.isCancelled(); }
+                };
+                if (!drawPage(canvas, viewportRect, 1.0f, cancellable)) {
+                    image.release();
+                    return null;
+                }
+                return image;
             }
-        };
 
-        mRenderTask.execute();
+            protected void onPostExecute(CairoImage image) {
+                if (image == null)
+                    return;
+                final int generation = ++mLowResGeneration;
+                mTiledLayer.paintLowResImage(image, LOW_RES_SCALE);
+                getLayerController().notifyViewOfGeometryChange();
+
+                /*
+                 * The low-resolution image stays around for as long as the page does, so swap it
+                 * for an ETC1-compressed copy once one is ready, unless it's been re-rendered
+                 * in the meantime.
+                 */
+                if (TileLayer.isETC1Supported()) {
+                    ETC1Compressor.compressInBackground(image, new ETC1Compressor.Listener() {
+                        public void onCompressed(CairoImage compressedImage) {
+                            if (generation == mLowResGeneration) {
+                                mTiledLayer.paintLowResImage(compressedImage, LOW_RES_SCALE);
+                                getLayerController().notifyViewOfGeometryChange();
+                            }
+                            compressedImage.release();
+                        }
+                    });
+                }
+
+                image.release();
+            }
+        }.execute();
+    }
+
+    /*
+     * Records the content of the page, in page coordinates. All the lines share one paint (each
+     * raster thread draws with a copy of it), and are drawn from a text run cache, so that
+     * re-rendering a line is a blit. Bitmap filtering is on because the low-resolution image
+     * draws the cached lines scaled down.
+     */
+    private static DisplayList recordPage() {
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setColor(Color.BLACK);
+        paint.setTextSize(12.0f);
+
+        TextRunCache textRunCache = new TextRunCache(TEXT_RUN_CACHE_BUDGET);
+        ArrayList<DisplayItem> items = new ArrayList<DisplayItem>();
+        for (int i = 0; i < TEXT.length; i++) {
+            items.add(new TextDisplayItem(TEXT[i], 12.0f, 12.0f + 12.0f + 14.0f * i, paint,
+                                          textRunCache));
+        }
+        return new DisplayList(items);
+    }
+
+    /*
+     * Draws the part of the page in the given viewport rect onto the canvas, with the top left
+     * corner of the canvas at the top left of the rect. Only the display items that intersect the
+     * rect are drawn. Returns false if the drawing was cancelled partway through; a null task
+     * means the drawing can't be cancelled.
+     */
+    private boolean drawPage(Canvas canvas, FloatRect viewportRect, float zoomFactor,
+                             Cancellable task) {
+        canvas.save();
+        canvas.scale(zoomFactor, zoomFactor);
+        canvas.translate(-viewportRect.x, -viewportRect.y);
+
+        try {
+            for (DisplayItem item : mDisplayList.getItemsIntersecting(viewportRect)) {
+                item.draw(canvas);
+                if (task != null && task.isCancelled())
+                    return false;
+            }
+            return true;
+        } finally {
+            canvas.restore();
+        }
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value)
+            result <<= 1;
+        return result;
     }
 
     /** Called whenever the page changes size. */
@@ -187,6 +452,12 @@ public class FakeGeckoLayerClient extends LayerClient {
                                                         layerController.getPageSize());
     }
 
+    /* Returns the scale of layer coordinates relative to page coordinates. */
+    private float getResolution() {
+        IntSize layerPageSize = getLayerController().getPageSize();
+        return (float)layerPageSize.width / (float)mViewportController.getPageSize().width;
+    }
+
     private float getZoomFactor() {
         LayerController layerController = getLayerController();
         return mViewportController.getZoomFactor(layerController.getVisibleRect(),
@@ -43,13 +43,16 @@ import org.mozilla.gecko.gfx.IntPoint;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.LayerClient;
 import org.mozilla.gecko.gfx.LayerController;
+import org.mozilla.gecko.gfx.LayerView;
 import org.mozilla.gecko.gfx.PlaceholderLayerClient;
+import org.mozilla.gecko.gfx.SnapshotWriter;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.os.Debug;
+import android.os.Environment;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -62,6 +65,7 @@ import android.view.Window;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import java.io.File;
 import java.io.IOException;
 
 public class MainUIController {
@@ -69,6 +73,7 @@ public class MainUIController {
     private LayerClient mLayerClient;
     private LayerController mLayerController;
     private View outerView;
+    private SnapshotWriter mSnapshotWriter;
 
     public MainUIController(Activity activity) {
         mActivity = activity;
@@ -120,6 +125,23 @@ public class MainUIController {
 
     public void start() { /* TODO */ }
 
+    /*
+     * Saves what's on the screen, so that the next cold start can show it right away. The
+     * snapshot is written in the background. If nothing has been rendered yet (or the UI was
+     * never built), there's nothing worth saving, and any earlier snapshot is left alone.
+     */
+    public void pause() {
+        if (mLayerController == null || mLayerController.getRoot() == null)
+            return;
+
+        if (mSnapshotWriter == null) {
+            File file = new File(Environment.getExternalStorageDirectory(),
+                                 PlaceholderLayerClient.SNAPSHOT_FILE_NAME);
+            mSnapshotWriter = new SnapshotWriter(file);
+        }
+        mLayerController.getView().takeSnapshot(mSnapshotWriter);
+    }
+
     public void createMenu(Menu menu) {
         menu.add("Load Mock Gecko").setOnMenuItemClickListener(new OnMenuItemClickListener() {
             @Override
@@ -154,6 +176,15 @@ public class MainUIController {
             }
         });
 
+        menu.add("Toggle Continuous Rendering").setOnMenuItemClickListener(new OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                LayerView view = mLayerController.getView();
+                view.setContinuousRendering(!view.getContinuousRendering());
+                return true;
+            }
+        });
+
         menu.add("Dump Heap").setOnMenuItemClickListener(new OnMenuItemClickListener() {
             @Override
             public boolean onMenuItemClick(MenuItem item) {
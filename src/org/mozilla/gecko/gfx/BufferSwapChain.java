@@ -0,0 +1,185 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.CairoUtils;
+import android.graphics.Bitmap;
+import java.nio.ByteBuffer;
+
+/**
+ * A small, fixed set of bitmaps that are handed back and forth between the threads that rasterize
+ * tiles and the GL thread that uploads them, so that the next tile can be rasterized while the
+ * last one is still being uploaded without either thread touching the other's pixels. Tiles are
+ * drawn straight into the bitmaps and uploaded straight from them, so the pixels are never copied
+ * in between.
+ *
+ * Each bitmap goes from free, to being rasterized into, to pending upload, to being uploaded, and
+ * back to free:
+ *
+ * - A raster thread acquires a free bitmap, waiting for one if they're all in use.
+ * - Once it has drawn into the bitmap, it publishes it, which wraps it in a Cairo image that can
+ *   be painted into a tile layer. The raster thread must not touch the bitmap afterward.
+ * - Locking the image for upload marks the bitmap as being uploaded.
+ * - Releasing the last reference to the image, which the tile layer does as soon as the texture
+ *   holds the pixels, returns the bitmap to the free list. An image that's dropped without being
+ *   uploaded (because its render was superseded, say) returns its bitmap the same way.
+ *
+ * Anything that holds on to a published image past its upload (a tile cache that retains pixels,
+ * for example) keeps a bitmap out of circulation, so images from a swap chain shouldn't be kept.
+ */
+public class BufferSwapChain {
+    private static final int STATE_FREE = 0;
+    private static final int STATE_RASTERIZING = 1;
+    private static final int STATE_PENDING_UPLOAD = 2;
+    private static final int STATE_UPLOADING = 3;
+
+    private final int mWidth, mHeight, mFormat;
+    private final Bitmap[] mBitmaps;
+    private final int[] mStates;
+
+    /** Creates a swap chain of bitmaps of the given size and Cairo format (ARGB32 or RGB565). */
+    public BufferSwapChain(int bufferCount, int width, int height, int format) {
+        mWidth = width; mHeight = height; mFormat = format;
+        mBitmaps = new Bitmap[bufferCount];
+        mStates = new int[bufferCount];
+
+        Bitmap.Config config = CairoUtils.cairoFormatToBitmapConfig(format);
+        for (int i = 0; i < bufferCount; i++) {
+            mBitmaps[i] = Bitmap.createBitmap(width, height, config);
+            mStates[i] = STATE_FREE;
+        }
+    }
+
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+    public int getFormat() { return mFormat; }
+
+    /**
+     * Takes a free bitmap for rasterizing into, waiting up to the given number of milliseconds for
+     * one to be freed if necessary. Returns null if none was freed in time.
+     */
+    public synchronized Bitmap acquire(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            for (int i = 0; i < mBitmaps.length; i++) {
+                if (mStates[i] == STATE_FREE) {
+                    mStates[i] = STATE_RASTERIZING;
+                    return mBitmaps[i];
+                }
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return null;
+            wait(remaining);
+        }
+    }
+
+    /**
+     * Hands a rasterized bitmap over for upload. The returned image owns the bitmap from now on;
+     * releasing its last reference returns the bitmap to the free list.
+     */
+    public synchronized CairoImage publish(Bitmap bitmap) {
+        int index = indexOf(bitmap);
+        transition(index, STATE_RASTERIZING, STATE_PENDING_UPLOAD);
+        return new SwapChainImage(index);
+    }
+
+    private int indexOf(Bitmap bitmap) {
+        for (int i = 0; i < mBitmaps.length; i++) {
+            if (mBitmaps[i] == bitmap)
+                return i;
+        }
+        throw new IllegalArgumentException("Bitmap doesn't belong to this swap chain");
+    }
+
+    private void transition(int index, int fromState, int toState) {
+        if (mStates[index] != fromState) {
+            throw new IllegalStateException("Bitmap " + index + " is in state " + mStates[index] +
+                                            ", expected " + fromState);
+        }
+        mStates[index] = toState;
+        if (toState == STATE_FREE)
+            notifyAll();
+    }
+
+    private class SwapChainImage extends CairoImage {
+        private final int mIndex;
+
+        public SwapChainImage(int index) { mIndex = index; }
+
+        @Override
+        public Bitmap lockBitmap() {
+            synchronized (BufferSwapChain.this) {
+                if (mStates[mIndex] == STATE_PENDING_UPLOAD)
+                    transition(mIndex, STATE_PENDING_UPLOAD, STATE_UPLOADING);
+                return mBitmaps[mIndex];
+            }
+        }
+
+        /* Only for consumers that need the raw bytes; the texture upload uses the bitmap. */
+        @Override
+        public ByteBuffer lockBuffer() {
+            Bitmap bitmap = lockBitmap();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bitmap.getRowBytes() * mHeight);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.rewind();
+            return buffer;
+        }
+
+        /* The image may be destroyed before it's uploaded if its tile was evicted first. */
+        @Override
+        protected void onDestroy() {
+            synchronized (BufferSwapChain.this) {
+                if (mStates[mIndex] == STATE_PENDING_UPLOAD)
+                    transition(mIndex, STATE_PENDING_UPLOAD, STATE_FREE);
+                else
+                    transition(mIndex, STATE_UPLOADING, STATE_FREE);
+            }
+        }
+
+        @Override
+        public int getWidth() { return mWidth; }
+        @Override
+        public int getHeight() { return mHeight; }
+        @Override
+        public int getFormat() { return mFormat; }
+    }
+}
@@ -57,10 +57,15 @@ public class BufferedCairoImage extends CairoImage {
         mFormat = CairoUtils.bitmapConfigToCairoFormat(bitmap.getConfig());
         mWidth = bitmap.getWidth();
         mHeight = bitmap.getHeight();
-        mBuffer = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
-        bitmap.copyPixelsToBuffer(mBuffer.asIntBuffer());
+        mBuffer = ByteBuffer.allocateDirect(bitmap.getRowBytes() * mHeight);
+        bitmap.copyPixelsToBuffer(mBuffer);
+        mBuffer.rewind();
     }
 
+    /* Drops the buffer so that its memory can be reclaimed even if the image object lingers. */
+    @Override
+    protected void onDestroy() { mBuffer = null; }
+
     @Override
     public ByteBuffer lockBuffer() { return mBuffer; }
     @Override
@@ -37,15 +37,54 @@
 
 package org.mozilla.gecko.gfx;
 
+import android.graphics.Bitmap;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * A bitmap with pixel data in one of the formats that Cairo understands.
+ *
+ * Images are reference counted, so that their pixel buffers can be let go of as soon as the last
+ * user is done with them instead of whenever the garbage collector gets around to it. A new image
+ * has one reference, which belongs to its creator. Anything else that holds on to the image past
+ * the call that handed it over (a tile layer waiting to upload it, for instance) retains it and
+ * releases it when it's done.
  */
 public abstract class CairoImage {
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    /** Adds a reference to this image. */
+    public void retain() {
+        if (mRefCount.getAndIncrement() <= 0)
+            throw new IllegalStateException("Image retained after it was destroyed");
+    }
+
+    /** Drops a reference to this image, destroying it if that was the last one. */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0)
+            onDestroy();
+        else if (refCount < 0)
+            throw new IllegalStateException("Image released more times than it was retained");
+    }
+
+    /**
+     * Called when the last reference to this image is released. Subclasses let go of their pixel
+     * buffers here. By default, a no-op.
+     */
+    protected void onDestroy() {}
+
     public abstract ByteBuffer lockBuffer();
     public void unlockBuffer() { /* By default, a no-op. */ }
 
+    /**
+     * Returns the bitmap that holds the pixels, locked, if the image is backed by one, or null
+     * otherwise. Bitmap-backed images are uploaded straight from the bitmap, without going
+     * through lockBuffer(). A non-null result must be paired with a call to unlockBitmap().
+     */
+    public Bitmap lockBitmap() { return null; }
+    public void unlockBitmap() { /* By default, a no-op. */ }
+
     public abstract int getWidth();
     public abstract int getHeight();
     public abstract int getFormat();
@@ -56,5 +95,8 @@ public abstract class CairoImage {
     public static final int FORMAT_A8 = 2;
     public static final int FORMAT_A1 = 3;
     public static final int FORMAT_RGB16_565 = 4;
+
+    /* Not a Cairo format: ETC1-compressed RGB, which can only be uploaded as a texture. */
+    public static final int FORMAT_ETC1 = 5;
 }
 
@@ -37,14 +37,33 @@
 
 package org.mozilla.gecko.gfx;
 
+import org.mozilla.gecko.gfx.BufferedCairoImage;
 import org.mozilla.gecko.gfx.CairoImage;
 import android.graphics.Bitmap;
+import android.opengl.ETC1;
 import javax.microedition.khronos.opengles.GL10;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Utility methods useful when displaying Cairo bitmaps using OpenGL ES.
  */
 public class CairoUtils {
+    /*
+     * A 4x4 ordered (Bayer) dither matrix, pre-scaled to the amount of precision that each channel
+     * loses when converted to RGB565: three bits for red and blue, two bits for green.
+     */
+    private static final int[] DITHER_5 = new int[16];
+    private static final int[] DITHER_6 = new int[16];
+
+    static {
+        int[] bayer = { 0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5 };
+        for (int i = 0; i < 16; i++) {
+            DITHER_5[i] = bayer[i] >> 1;
+            DITHER_6[i] = bayer[i] >> 2;
+        }
+    }
+
     private CairoUtils() { /* Don't call me. */ }
 
     public static int cairoFormatToGLInternalFormat(int cairoFormat) {
@@ -55,13 +74,33 @@ public class CairoUtils {
         case CairoImage.FORMAT_RGB16_565:
             return GL10.GL_RGB;
         case CairoImage.FORMAT_A8:
+            return GL10.GL_ALPHA;
         case CairoImage.FORMAT_A1:
-            throw new RuntimeException("Cairo FORMAT_A1 and FORMAT_A8 unsupported");
+            throw new RuntimeException("Cairo FORMAT_A1 unsupported in Android OpenGL");
+        case CairoImage.FORMAT_ETC1:
+            return ETC1.ETC1_RGB8_OES;
         default:
             throw new RuntimeException("Unknown Cairo format");
         }
     }
 
+    /** Returns true if images in the given format must be uploaded with glCompressedTexImage2D. */
+    public static boolean isCompressedFormat(int cairoFormat) {
+        return cairoFormat == CairoImage.FORMAT_ETC1;
+    }
+
+    /** Returns true if images in the given format have no alpha channel. */
+    public static boolean isOpaqueFormat(int cairoFormat) {
+        switch (cairoFormat) {
+        case CairoImage.FORMAT_RGB24:
+        case CairoImage.FORMAT_RGB16_565:
+        case CairoImage.FORMAT_ETC1:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     public static int cairoFormatToGLFormat(int cairoFormat) {
         switch (cairoFormat) {
         case CairoImage.FORMAT_ARGB32:
@@ -95,6 +134,7 @@ public class CairoUtils {
     public static int bitsPerPixelForCairoFormat(int cairoFormat) {
         switch (cairoFormat) {
         case CairoImage.FORMAT_A1:          return 1;
+        case CairoImage.FORMAT_ETC1:        return 4;
         case CairoImage.FORMAT_A8:          return 8;
         case CairoImage.FORMAT_RGB16_565:   return 16;
         case CairoImage.FORMAT_RGB24:       return 24;
@@ -104,6 +144,16 @@ public class CairoUtils {
         }
     }
 
+    public static Bitmap.Config cairoFormatToBitmapConfig(int cairoFormat) {
+        switch (cairoFormat) {
+        case CairoImage.FORMAT_A8:          return Bitmap.Config.ALPHA_8;
+        case CairoImage.FORMAT_ARGB32:      return Bitmap.Config.ARGB_8888;
+        case CairoImage.FORMAT_RGB16_565:   return Bitmap.Config.RGB_565;
+        default:
+            throw new RuntimeException("No bitmap config for Cairo format " + cairoFormat);
+        }
+    }
+
     public static int bitmapConfigToCairoFormat(Bitmap.Config config) {
         if (config == null)
             return CairoImage.FORMAT_ARGB32;    /* Droid Pro fix. */
@@ -116,5 +166,164 @@ public class CairoUtils {
         default:        throw new RuntimeException("Unknown Skia bitmap config");
         }
     }
-}
 
+    /*
+     * Pixel format conversions.
+     *
+     * These all work on tightly packed rows, use absolute indexing so that the buffers' positions
+     * are left alone, and don't allocate. Each takes the range of rows to convert, so that a large
+     * image can be split into stripes and converted on several threads at once. ARGB32 pixels are
+     * stored in RGBA byte order, as Android bitmaps and GL_RGBA textures expect.
+     */
+
+    /**
+     * Converts ARGB32 pixels to RGB565, dropping alpha. If dither is true, an ordered dither hides
+     * the banding that the lost precision would otherwise cause in gradients. The 565 pixels are
+     * written in the destination buffer's byte order, which should be native for GL.
+     */
+    public static void convertARGB32ToRGB565(ByteBuffer src, ByteBuffer dst, int width,
+                                             int startRow, int rowCount, boolean dither) {
+        int endRow = startRow + rowCount;
+        for (int y = startRow; y < endRow; y++) {
+            int srcIndex = y * width * 4, dstIndex = y * width * 2, ditherRow = (y & 3) << 2;
+            for (int x = 0; x < width; x++) {
+                int r = src.get(srcIndex) & 0xff;
+                int g = src.get(srcIndex + 1) & 0xff;
+                int b = src.get(srcIndex + 2) & 0xff;
+                if (dither) {
+                    int d = ditherRow | (x & 3);
+                    r = Math.min(r + DITHER_5[d], 255);
+                    g = Math.min(g + DITHER_6[d], 255);
+                    b = Math.min(b + DITHER_5[d], 255);
+                }
+                dst.putShort(dstIndex, (short)(((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3)));
+                srcIndex += 4;
+                dstIndex += 2;
+            }
+        }
+    }
+
+    /** Converts ARGB32 pixels to RGB24 by dropping the alpha byte of each pixel. */
+    public static void convertARGB32ToRGB24(ByteBuffer src, ByteBuffer dst, int width,
+                                            int startRow, int rowCount) {
+        int srcIndex = startRow * width * 4, dstIndex = startRow * width * 3;
+        int end = (startRow + rowCount) * width * 4;
+        while (srcIndex < end) {
+            dst.put(dstIndex, src.get(srcIndex));
+            dst.put(dstIndex + 1, src.get(srcIndex + 1));
+            dst.put(dstIndex + 2, src.get(srcIndex + 2));
+            srcIndex += 4;
+            dstIndex += 3;
+        }
+    }
+
+    /** Extracts the alpha channel of ARGB32 pixels as A8. */
+    public static void extractA8FromARGB32(ByteBuffer src, ByteBuffer dst, int width,
+                                           int startRow, int rowCount) {
+        int srcIndex = startRow * width * 4 + 3, dstIndex = startRow * width;
+        int end = (startRow + rowCount) * width;
+        while (dstIndex < end) {
+            dst.put(dstIndex++, src.get(srcIndex));
+            srcIndex += 4;
+        }
+    }
+
+    /** Multiplies the color channels of ARGB32 pixels by their alpha, in place. */
+    public static void premultiplyARGB32(ByteBuffer buffer, int width, int startRow,
+                                         int rowCount) {
+        int end = (startRow + rowCount) * width * 4;
+        for (int i = startRow * width * 4; i < end; i += 4) {
+            int a = buffer.get(i + 3) & 0xff;
+            if (a == 255)
+                continue;
+            for (int c = i; c < i + 3; c++) {
+                /* An exact, rounded division by 255. */
+                int t = (buffer.get(c) & 0xff) * a + 128;
+                buffer.put(c, (byte)((t + (t >> 8)) >> 8));
+            }
+        }
+    }
+
+    /** Divides the color channels of premultiplied ARGB32 pixels by their alpha, in place. */
+    public static void unpremultiplyARGB32(ByteBuffer buffer, int width, int startRow,
+                                           int rowCount) {
+        int end = (startRow + rowCount) * width * 4;
+        for (int i = startRow * width * 4; i < end; i += 4) {
+            int a = buffer.get(i + 3) & 0xff;
+            if (a == 255)
+                continue;
+            for (int c = i; c < i + 3; c++) {
+                int value = a == 0 ? 0 : ((buffer.get(c) & 0xff) * 255 + a / 2) / a;
+                buffer.put(c, (byte)Math.min(value, 255));
+            }
+        }
+    }
+
+    /** Returns true if every ARGB32 pixel in the given rows has an alpha of 255. */
+    public static boolean isOpaqueARGB32(ByteBuffer buffer, int width, int startRow,
+                                         int rowCount) {
+        int end = (startRow + rowCount) * width * 4;
+        for (int i = startRow * width * 4 + 3; i < end; i += 4) {
+            if (buffer.get(i) != (byte)0xff)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cheapest format that an ARGB32 image can be uploaded in without losing anything
+     * but color precision: RGB565 if it's opaque, or ARGB32 otherwise.
+     */
+    public static int chooseUploadFormat(CairoImage image) {
+        if (image.getFormat() != CairoImage.FORMAT_ARGB32)
+            return image.getFormat();
+
+        ByteBuffer buffer = image.lockBuffer();
+        try {
+            if (isOpaqueARGB32(buffer, image.getWidth(), 0, image.getHeight()))
+                return CairoImage.FORMAT_RGB16_565;
+            return CairoImage.FORMAT_ARGB32;
+        } finally {
+            image.unlockBuffer();
+        }
+    }
+
+    /**
+     * Converts an ARGB32 image to the given format on the calling thread. The caller owns the
+     * returned image.
+     */
+    public static CairoImage convertImage(CairoImage image, int format, boolean dither) {
+        int width = image.getWidth(), height = image.getHeight();
+        if (image.getFormat() != CairoImage.FORMAT_ARGB32)
+            throw new IllegalArgumentException("Can only convert ARGB32 images");
+
+        int byteCount = width * height * bitsPerPixelForCairoFormat(format) / 8;
+        ByteBuffer output = ByteBuffer.allocateDirect(byteCount);
+        output.order(ByteOrder.nativeOrder());
+
+        ByteBuffer input = image.lockBuffer();
+        try {
+            switch (format) {
+            case CairoImage.FORMAT_ARGB32:
+                for (int i = 0; i < byteCount; i++)
+                    output.put(i, input.get(i));
+                break;
+            case CairoImage.FORMAT_RGB24:
+                convertARGB32ToRGB24(input, output, width, 0, height);
+                break;
+            case CairoImage.FORMAT_RGB16_565:
+                convertARGB32ToRGB565(input, output, width, 0, height, dither);
+                break;
+            case CairoImage.FORMAT_A8:
+                extractA8FromARGB32(input, output, width, 0, height);
+                break;
+            default:
+                throw new IllegalArgumentException("Can't convert images to format " + format);
+            }
+        } finally {
+            image.unlockBuffer();
+        }
+
+        return new BufferedCairoImage(output, width, height, format);
+    }
+}
@@ -0,0 +1,120 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.DisplayItem;
+import org.mozilla.gecko.gfx.FloatRect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The content of a page, recorded once as a list of display items so that drawing a part of the
+ * page only has to visit the items that intersect it.
+ *
+ * The items are indexed by an interval tree over their vertical extents: they're sorted by top
+ * edge and treated as an implicit balanced binary tree, in which each node also stores the
+ * greatest bottom edge in its subtree. A query skips every subtree that ends above the query rect
+ * and every item that starts below it, so it costs O(log n + k) for k matching items. Pages are
+ * laid out top to bottom, so the vertical extent is what separates items; the horizontal extent
+ * is only checked for the items the tree turns up.
+ *
+ * Display lists are immutable once built, so they can be queried from any thread.
+ */
+public class DisplayList {
+    private final DisplayItem[] mItems;     /* Sorted by top edge. */
+    private final float[] mMaxBottoms;      /* The greatest bottom edge in each subtree. */
+
+    public DisplayList(ArrayList<DisplayItem> items) {
+        mItems = items.toArray(new DisplayItem[items.size()]);
+        Arrays.sort(mItems, new Comparator<DisplayItem>() {
+            public int compare(DisplayItem a, DisplayItem b) {
+                return Float.compare(a.getBounds().y, b.getBounds().y);
+            }
+        });
+
+        mMaxBottoms = new float[mItems.length];
+        buildIndex(0, mItems.length);
+    }
+
+    public int getItemCount() { return mItems.length; }
+
+    /* Fills in the greatest bottom edge for the subtree rooted at the middle of [start, end). */
+    private float buildIndex(int start, int end) {
+        if (start >= end)
+            return Float.NEGATIVE_INFINITY;
+
+        int middle = (start + end) >>> 1;
+        float maxBottom = mItems[middle].getBounds().getBottom();
+        maxBottom = Math.max(maxBottom, buildIndex(start, middle));
+        maxBottom = Math.max(maxBottom, buildIndex(middle + 1, end));
+        mMaxBottoms[middle] = maxBottom;
+        return maxBottom;
+    }
+
+    /** Returns the items whose bounds intersect the given rect, in order of their top edges. */
+    public ArrayList<DisplayItem> getItemsIntersecting(FloatRect rect) {
+        ArrayList<DisplayItem> result = new ArrayList<DisplayItem>();
+        if (rect.width > 0.0f && rect.height > 0.0f)
+            query(0, mItems.length, rect, result);
+        return result;
+    }
+
+    private void query(int start, int end, FloatRect rect, ArrayList<DisplayItem> result) {
+        if (start >= end)
+            return;
+
+        int middle = (start + end) >>> 1;
+        if (mMaxBottoms[middle] <= rect.y)
+            return;     /* Everything in this subtree ends above the rect. */
+
+        query(start, middle, rect, result);
+
+        FloatRect bounds = mItems[middle].getBounds();
+        if (bounds.y >= rect.getBottom())
+            return;     /* This item and everything after it starts below the rect. */
+
+        if (bounds.getBottom() > rect.y && bounds.x < rect.getRight() &&
+                bounds.getRight() > rect.x) {
+            result.add(mItems[middle]);
+        }
+
+        query(middle + 1, end, rect, result);
+    }
+}
@@ -0,0 +1,170 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.BufferedCairoImage;
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.CairoUtils;
+import android.opengl.ETC1;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compresses images to ETC1, which takes a quarter of the texture memory of ARGB32 and half that
+ * of RGB565. Compression is slow and lossy and drops the alpha channel, so it's meant for opaque
+ * content that isn't going to change, which can be shown uncompressed first and swapped for the
+ * compressed version once it's ready.
+ *
+ * Compressed images can only be drawn if the GL supports the ETC1 extension; see
+ * TileLayer.isETC1Supported().
+ */
+public class ETC1Compressor {
+    private static final String LOG_NAME = "ETC1Compressor";
+
+    private static ExecutorService sExecutor;
+
+    private ETC1Compressor() { /* Don't call me. */ }
+
+    /** Receives the compressed image, on the thread that asked for it. */
+    public interface Listener {
+        public void onCompressed(CairoImage image);
+    }
+
+    /**
+     * Compresses the given image, which must be RGB565, RGB24, or ARGB32. ARGB32 images with any
+     * transparent pixels can't be compressed, since ETC1 would draw them opaque; for those, this
+     * returns null. The caller owns the returned image.
+     */
+    public static CairoImage compress(CairoImage image) {
+        int width = image.getWidth(), height = image.getHeight(), format = image.getFormat();
+        ByteBuffer output = ByteBuffer.allocateDirect(ETC1.getEncodedDataSize(width, height));
+        output.order(ByteOrder.nativeOrder());
+
+        ByteBuffer input = image.lockBuffer();
+        try {
+            switch (format) {
+            case CairoImage.FORMAT_RGB16_565:
+                ETC1.encodeImage(input, width, height, 2, width * 2, output);
+                break;
+            case CairoImage.FORMAT_RGB24:
+                ETC1.encodeImage(input, width, height, 3, width * 3, output);
+                break;
+            case CairoImage.FORMAT_ARGB32:
+                /* Snapshots padded out to powers of two have transparent edges, for example. */
+                if (!CairoUtils.isOpaqueARGB32(input, width, 0, height))
+                    return null;
+                ETC1.encodeImage(dropAlpha(input, width, height), width, height, 3, width * 3,
+                                 output);
+                break;
+            default:
+                throw new IllegalArgumentException("Can't compress images in format " + format);
+            }
+        } finally {
+            image.unlockBuffer();
+        }
+
+        return new BufferedCairoImage(output, width, height, CairoImage.FORMAT_ETC1);
+    }
+
+    /* The encoder only takes two or three bytes per pixel, so repack RGBA pixels as RGB. */
+    private static ByteBuffer dropAlpha(ByteBuffer input, int width, int height) {
+        ByteBuffer output = ByteBuffer.allocateDirect(width * height * 3);
+        CairoUtils.convertARGB32ToRGB24(input, output, width, 0, height);
+        return output;
+    }
+
+    /**
+     * Compresses the given image on a background thread and passes the result to the listener on
+     * the calling thread, which must have a looper. The image is retained until then. If
+     * compression fails, or the image can't be compressed, the listener isn't called.
+     */
+    public static void compressInBackground(final CairoImage image, final Listener listener) {
+        final Handler handler = new Handler();
+        image.retain();
+
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                final CairoImage compressedImage;
+                try {
+                    compressedImage = compress(image);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_NAME, "Couldn't compress a " + image.getWidth() + "x" +
+                          image.getHeight() + " image", e);
+                    return;
+                } finally {
+                    image.release();
+                }
+
+                if (compressedImage == null)
+                    return;
+
+                Log.i(LOG_NAME, "Compressed a " + image.getWidth() + "x" + image.getHeight() +
+                      " image in " + (System.currentTimeMillis() - startTime) + " ms");
+                handler.post(new Runnable() {
+                    public void run() {
+                        listener.onCompressed(compressedImage);
+                    }
+                });
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ETC1Compressor");
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
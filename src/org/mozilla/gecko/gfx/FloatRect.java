@@ -51,6 +51,23 @@ public class FloatRect {
         x = intRect.x; y = intRect.y; width = intRect.width; height = intRect.height;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FloatRect))
+            return false;
+        FloatRect otherRect = (FloatRect)other;
+        return x == otherRect.x && y == otherRect.y && width == otherRect.width &&
+            height == otherRect.height;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(x);
+        result = result * 31 + Float.floatToIntBits(y);
+        result = result * 31 + Float.floatToIntBits(width);
+        return result * 31 + Float.floatToIntBits(height);
+    }
+
     public float getRight() { return x + width; }
     public float getBottom() { return y + height; }
 
@@ -66,6 +83,21 @@ public class FloatRect {
         return new FloatRect(left, top, Math.max(right - left, 0), Math.max(bottom - top, 0));
     }
 
+    /** Returns true if this rectangle and another one overlap by a nonzero area. */
+    public boolean intersects(FloatRect other) {
+        return Math.max(x, other.x) < Math.min(getRight(), other.getRight()) &&
+               Math.max(y, other.y) < Math.min(getBottom(), other.getBottom());
+    }
+
+    /** Returns the smallest rectangle that encloses both this rectangle and another one. */
+    public FloatRect union(FloatRect other) {
+        float left = Math.min(x, other.x);
+        float top = Math.min(y, other.y);
+        float right = Math.max(getRight(), other.getRight());
+        float bottom = Math.max(getBottom(), other.getBottom());
+        return new FloatRect(left, top, right - left, bottom - top);
+    }
+
     /** Returns true if and only if the given rectangle is fully enclosed within this one. */
     public boolean contains(FloatRect other) {
         return x <= other.x && y <= other.y &&
@@ -0,0 +1,173 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.LayerView;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs animations in step with the display.
+ *
+ * The GL thread calls onFrameStart() at the start of every frame it draws. Since the previous
+ * frame's buffer swap blocks until vsync, that happens once per display refresh for as long as
+ * frames keep coming. Each time, the scheduler runs the pending frame callbacks on the UI thread,
+ * and asks for another frame if any of them want to run again. So every animation advances
+ * exactly once per frame, and by the same amount of time the display does, instead of running
+ * from a timer of its own that beats against the refresh rate.
+ *
+ * Whatever the callbacks change can only be drawn in the frame after the one that kicked them
+ * off, so they're given the time that frame is expected to start, one frame interval later,
+ * rather than the time of the frame that's already drawing. Render requests made on the UI
+ * thread while the callbacks run are folded into a single request once they're all done.
+ *
+ * Texture uploads aren't driven from here: they need the GL thread, so the layers do them as the
+ * frame draws, right after the renderer has kicked off the callbacks.
+ *
+ * Callbacks are one-shot, like View.post(): a callback that wants to run on the next frame too
+ * posts itself again.
+ */
+public class FrameScheduler {
+    /* Assumed until two frames in a row have been drawn, or if frames stop coming for a while. */
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60L;
+
+    private LayerView mView;
+    private final Thread mUIThread;
+
+    /* Only touched on the UI thread. */
+    private ArrayList<FrameCallback> mCallbacks;
+    private ArrayList<FrameCallback> mRunningCallbacks;
+    private boolean mInTick;
+    private boolean mRenderDeferred;
+
+    /* Only touched on the GL thread. */
+    private long mLastFrameStart;
+
+    private volatile boolean mAnimating;
+    private volatile long mFrameTime;
+    private final AtomicBoolean mTickPosted;
+    private final Runnable mTickRunnable;
+
+    public FrameScheduler(LayerView view) {
+        mView = view;
+        mUIThread = Thread.currentThread();
+        mCallbacks = new ArrayList<FrameCallback>();
+        mRunningCallbacks = new ArrayList<FrameCallback>();
+        mTickPosted = new AtomicBoolean(false);
+        mTickRunnable = new Runnable() {
+            public void run() { tick(); }
+        };
+    }
+
+    /** Something that wants to run once per frame. */
+    public interface FrameCallback {
+        /**
+         * Called on the UI thread once per frame. The frame time is when the frame that will show
+         * the callback's changes is expected to start, in the same units as System.nanoTime().
+         */
+        public void doFrame(long frameTimeNanos);
+    }
+
+    /** Runs the given callback on the next frame. Must be called on the UI thread. */
+    public void postFrameCallback(FrameCallback callback) {
+        if (!mCallbacks.contains(callback))
+            mCallbacks.add(callback);
+        mAnimating = true;
+        mView.requestRender();
+    }
+
+    /** Cancels a callback posted with postFrameCallback(). Must be called on the UI thread. */
+    public void removeFrameCallback(FrameCallback callback) {
+        mCallbacks.remove(callback);
+        mAnimating = !mCallbacks.isEmpty();
+    }
+
+    /** The renderer calls this on the GL thread at the start of every frame. */
+    public void onFrameStart() {
+        long now = System.nanoTime();
+        long interval = now - mLastFrameStart;
+        if (mLastFrameStart == 0 || interval > DEFAULT_FRAME_INTERVAL_NANOS * 2)
+            interval = DEFAULT_FRAME_INTERVAL_NANOS;
+        mLastFrameStart = now;
+
+        if (!mAnimating)
+            return;
+
+        mFrameTime = now + interval;
+        if (mTickPosted.compareAndSet(false, true))
+            mView.post(mTickRunnable);
+    }
+
+    /**
+     * The view calls this before asking for a frame. Returns true if the request should be held
+     * back because the frame callbacks are running on this thread; the scheduler asks for a
+     * single frame once they're done.
+     */
+    public boolean deferRender() {
+        if (Thread.currentThread() != mUIThread || !mInTick)
+            return false;
+        mRenderDeferred = true;
+        return true;
+    }
+
+    private void tick() {
+        mTickPosted.set(false);
+        long frameTime = mFrameTime;
+
+        /* Swap the lists so that callbacks posted while we run them land on the next frame. */
+        ArrayList<FrameCallback> callbacks = mCallbacks;
+        mCallbacks = mRunningCallbacks;
+        mRunningCallbacks = callbacks;
+        mAnimating = false;
+
+        mInTick = true;
+        mRenderDeferred = false;
+        try {
+            for (int i = 0; i < callbacks.size(); i++)
+                callbacks.get(i).doFrame(frameTime);
+        } finally {
+            mInTick = false;
+            callbacks.clear();
+        }
+
+        mAnimating = !mCallbacks.isEmpty();
+        if (mAnimating || mRenderDeferred)
+            mView.requestRender();
+    }
+}
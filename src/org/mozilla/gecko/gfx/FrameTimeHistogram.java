@@ -0,0 +1,122 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A histogram of frame times, with one-millisecond buckets. Times are recorded on the GL thread
+ * and can be read from any thread at any time without locking; a reader racing a writer may see
+ * a sample or two from the frame in progress, which is fine for statistics.
+ */
+public class FrameTimeHistogram {
+    /** The time that a frame has to draw in to keep up with a 60 Hz display, in nanoseconds. */
+    public static final long FRAME_BUDGET_NANOS = 1000000000L / 60L;
+    /*
+     * Frame intervals jitter around the budget, so a frame only counts as over budget once it's
+     * long enough that a vsync must have been missed.
+     */
+    private static final long OVER_BUDGET_NANOS = FRAME_BUDGET_NANOS * 3 / 2;
+
+    /* Frames that take this long or longer all land in the last bucket. */
+    private static final int BUCKET_COUNT = 128;
+    /* The slot after the buckets counts frames over budget. */
+    private static final int OVER_BUDGET_INDEX = BUCKET_COUNT;
+
+    private final AtomicIntegerArray mBuckets;
+
+    public FrameTimeHistogram() {
+        mBuckets = new AtomicIntegerArray(BUCKET_COUNT + 1);
+    }
+
+    /** Records a frame that took the given time, in nanoseconds. */
+    public void record(long nanos) {
+        int bucket = (int)Math.min(Math.max(nanos / 1000000L, 0L), BUCKET_COUNT - 1);
+        mBuckets.incrementAndGet(bucket);
+        if (nanos > OVER_BUDGET_NANOS)
+            mBuckets.incrementAndGet(OVER_BUDGET_INDEX);
+    }
+
+    /** Returns the number of frames recorded. */
+    public int getFrameCount() {
+        int count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += mBuckets.get(i);
+        return count;
+    }
+
+    /** Returns the number of frames that went over budget, missing at least one vsync. */
+    public int getOverBudgetCount() { return mBuckets.get(OVER_BUDGET_INDEX); }
+
+    /**
+     * Returns the time, in milliseconds, that the given fraction of frames (between 0 and 1) took
+     * no longer than. The result is rounded up to the next whole millisecond; 0 means that no
+     * frames have been recorded.
+     */
+    public int getPercentile(float fraction) {
+        int frameCount = getFrameCount();
+        if (frameCount == 0)
+            return 0;
+
+        int target = Math.max((int)Math.ceil(frameCount * fraction), 1), count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+            if (count >= target)
+                return i + 1;
+        }
+        return BUCKET_COUNT;
+    }
+
+    public int getMedian() { return getPercentile(0.50f); }
+    public int get95thPercentile() { return getPercentile(0.95f); }
+    public int get99thPercentile() { return getPercentile(0.99f); }
+
+    /** Forgets all the frames recorded so far. */
+    public void reset() {
+        for (int i = 0; i <= BUCKET_COUNT; i++)
+            mBuckets.set(i, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "p50 " + getMedian() + " ms, p95 " + get95thPercentile() + " ms, p99 " +
+            get99thPercentile() + " ms, " + getOverBudgetCount() + " of " + getFrameCount() +
+            " frames over budget";
+    }
+}
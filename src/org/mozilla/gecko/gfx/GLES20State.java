@@ -0,0 +1,327 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.GLState;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+import javax.microedition.khronos.opengles.GL10;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The OpenGL ES 2.0 backend of the compositor. It keeps the fixed function pipeline's matrix
+ * stacks itself and draws with a couple of tiny shader programs:
+ *
+ * - The texture program draws a textured quad, with a texture matrix. The nine-patch shadow is
+ *   drawn with it too, since it's made of textured strips offset by the texture matrix.
+ *
+ * - The repeat program wraps texture coordinates in the shader. OpenGL ES 2.0 only lets NPOT
+ *   textures clamp, so that's how the checkerboard repeats whatever its size.
+ *
+ * Attribute locations are bound before linking, so both programs take vertices and texture
+ * coordinates from the same arrays.
+ */
+public class GLES20State extends GLState {
+    private static final String LOG_NAME = "GLES20State";
+
+    private static final int ATTRIB_POSITION = 0;
+    private static final int ATTRIB_TEX_COORD = 1;
+
+    private static final String VERTEX_SHADER =
+        "uniform mat4 uMVPMatrix;\n" +
+        "uniform mat4 uTexMatrix;\n" +
+        "attribute vec4 aPosition;\n" +
+        "attribute vec2 aTexCoord;\n" +
+        "varying vec2 vTexCoord;\n" +
+        "void main() {\n" +
+        "    gl_Position = uMVPMatrix * aPosition;\n" +
+        "    vTexCoord = (uTexMatrix * vec4(aTexCoord, 0.0, 1.0)).xy;\n" +
+        "}\n";
+
+    private static final String TEXTURE_FRAGMENT_SHADER =
+        "precision mediump float;\n" +
+        "uniform sampler2D uSampler;\n" +
+        "varying vec2 vTexCoord;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = texture2D(uSampler, vTexCoord);\n" +
+        "}\n";
+
+    private static final String REPEAT_FRAGMENT_SHADER =
+        "precision mediump float;\n" +
+        "uniform sampler2D uSampler;\n" +
+        "varying vec2 vTexCoord;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = texture2D(uSampler, fract(vTexCoord));\n" +
+        "}\n";
+
+    private Program mTextureProgram, mRepeatProgram, mCurrentProgram;
+
+    private MatrixStack mProjection, mModelview, mTexture, mCurrentStack;
+    private float[] mMVPMatrix;
+
+    public GLES20State() {
+        mProjection = new MatrixStack(2);
+        mModelview = new MatrixStack(16);
+        mTexture = new MatrixStack(4);
+        mCurrentStack = mModelview;
+        mMVPMatrix = new float[16];
+    }
+
+    /* The programs belonged to the old context, so they have to be built again. */
+    @Override
+    public void surfaceCreated(GL10 gl) {
+        invalidate();
+        mTextureProgram = new Program(TEXTURE_FRAGMENT_SHADER);
+        mRepeatProgram = new Program(REPEAT_FRAGMENT_SHADER);
+        mCurrentProgram = null;
+
+        mProjection.reset();
+        mModelview.reset();
+        mTexture.reset();
+        mCurrentStack = mModelview;
+    }
+
+    @Override
+    public boolean isGLES20() { return true; }
+
+    /* Buffer objects are core in OpenGL ES 2.0. */
+    @Override
+    public boolean supportsBufferObjects() { return true; }
+
+    @Override
+    public int genBuffer(GL10 gl) {
+        int[] bufferIDs = new int[1];
+        GLES20.glGenBuffers(1, bufferIDs, 0);
+        return bufferIDs[0];
+    }
+
+    @Override
+    public void bufferData(GL10 gl, int byteCount, Buffer data) {
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, byteCount, data, GLES20.GL_STATIC_DRAW);
+    }
+
+    @Override
+    public void bufferSubData(GL10 gl, int byteCount, Buffer data) {
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, byteCount, data);
+    }
+
+    @Override
+    protected void applyBindArrayBuffer(GL10 gl, int bufferID) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID);
+    }
+
+    @Override
+    protected void applyDeleteBuffers(GL10 gl, int[] bufferIDs) {
+        GLES20.glDeleteBuffers(bufferIDs.length, bufferIDs, 0);
+    }
+
+    /* There's no matrix mode in GL; it just picks which of our stacks the transforms apply to. */
+    @Override
+    public void matrixMode(GL10 gl, int mode) {
+        switch (mode) {
+        case GL10.GL_PROJECTION:    mCurrentStack = mProjection;    break;
+        case GL10.GL_MODELVIEW:     mCurrentStack = mModelview;     break;
+        case GL10.GL_TEXTURE:       mCurrentStack = mTexture;       break;
+        default:
+            throw new IllegalArgumentException("Unknown matrix mode " + mode);
+        }
+    }
+
+    @Override
+    public void pushMatrix(GL10 gl) { mCurrentStack.push(); }
+    @Override
+    public void popMatrix(GL10 gl) { mCurrentStack.pop(); }
+
+    @Override
+    public void loadIdentity(GL10 gl) {
+        Matrix.setIdentityM(mCurrentStack.matrices, mCurrentStack.getOffset());
+    }
+
+    @Override
+    public void translate(GL10 gl, float x, float y) {
+        Matrix.translateM(mCurrentStack.matrices, mCurrentStack.getOffset(), x, y, 0.0f);
+    }
+
+    @Override
+    public void scale(GL10 gl, float x, float y) {
+        Matrix.scaleM(mCurrentStack.matrices, mCurrentStack.getOffset(), x, y, 1.0f);
+    }
+
+    /* Only ever called right after loadIdentity(), so setting the matrix is the same thing. */
+    @Override
+    public void ortho(GL10 gl, float left, float right, float bottom, float top) {
+        Matrix.orthoM(mCurrentStack.matrices, mCurrentStack.getOffset(), left, right, bottom,
+                      top, -10.0f, 10.0f);
+    }
+
+    @Override
+    public void setArrayPointer(GL10 gl, int array, int componentCount, FloatBuffer values) {
+        GLES20.glVertexAttribPointer(getAttribLocation(array), componentCount, GLES20.GL_FLOAT,
+                                     false, 0, values);
+    }
+
+    @Override
+    public void setArrayPointer(GL10 gl, int array, int componentCount) {
+        GLES20.glVertexAttribPointer(getAttribLocation(array), componentCount, GLES20.GL_FLOAT,
+                                     false, 0, 0);
+    }
+
+    @Override
+    protected void applyClientState(GL10 gl, int array, boolean enabled) {
+        if (enabled)
+            GLES20.glEnableVertexAttribArray(getAttribLocation(array));
+        else
+            GLES20.glDisableVertexAttribArray(getAttribLocation(array));
+    }
+
+    @Override
+    public void drawTriangleStrip(GL10 gl, int count, boolean repeat) {
+        Program program = repeat ? mRepeatProgram : mTextureProgram;
+        if (program == mCurrentProgram) {
+            mSkippedCallCount++;
+        } else {
+            GLES20.glUseProgram(program.id);
+            mCurrentProgram = program;
+        }
+
+        Matrix.multiplyMM(mMVPMatrix, 0, mProjection.matrices, mProjection.getOffset(),
+                          mModelview.matrices, mModelview.getOffset());
+        GLES20.glUniformMatrix4fv(program.mvpMatrixLocation, 1, false, mMVPMatrix, 0);
+        GLES20.glUniformMatrix4fv(program.texMatrixLocation, 1, false, mTexture.matrices,
+                                  mTexture.getOffset());
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, count);
+    }
+
+    private static int getAttribLocation(int array) {
+        switch (array) {
+        case GL10.GL_VERTEX_ARRAY:          return ATTRIB_POSITION;
+        case GL10.GL_TEXTURE_COORD_ARRAY:   return ATTRIB_TEX_COORD;
+        default:
+            throw new IllegalArgumentException("Unknown array " + array);
+        }
+    }
+
+    /* A linked program made of the shared vertex shader and the given fragment shader. */
+    private static class Program {
+        public final int id;
+        public final int mvpMatrixLocation, texMatrixLocation;
+
+        public Program(String fragmentShaderSource) {
+            int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+            int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderSource);
+
+            id = GLES20.glCreateProgram();
+            GLES20.glAttachShader(id, vertexShader);
+            GLES20.glAttachShader(id, fragmentShader);
+            GLES20.glBindAttribLocation(id, ATTRIB_POSITION, "aPosition");
+            GLES20.glBindAttribLocation(id, ATTRIB_TEX_COORD, "aTexCoord");
+            GLES20.glLinkProgram(id);
+
+            /* The program keeps what it needs; the shaders go away when it does. */
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDeleteShader(fragmentShader);
+
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(id, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] == 0) {
+                String log = GLES20.glGetProgramInfoLog(id);
+                GLES20.glDeleteProgram(id);
+                throw new RuntimeException("Couldn't link shader program: " + log);
+            }
+
+            mvpMatrixLocation = GLES20.glGetUniformLocation(id, "uMVPMatrix");
+            texMatrixLocation = GLES20.glGetUniformLocation(id, "uTexMatrix");
+
+            /* The sampler always reads from texture unit 0. */
+            GLES20.glUseProgram(id);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(id, "uSampler"), 0);
+        }
+
+        private static int compileShader(int type, String source) {
+            int shader = GLES20.glCreateShader(type);
+            GLES20.glShaderSource(shader, source);
+            GLES20.glCompileShader(shader);
+
+            int[] status = new int[1];
+            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+            if (status[0] == 0) {
+                String log = GLES20.glGetShaderInfoLog(shader);
+                GLES20.glDeleteShader(shader);
+                Log.e(LOG_NAME, "Couldn't compile shader:\n" + source);
+                throw new RuntimeException("Couldn't compile shader: " + log);
+            }
+            return shader;
+        }
+    }
+
+    /* A fixed-depth stack of 4x4 matrices, stored end to end so that nothing is allocated. */
+    private static class MatrixStack {
+        public final float[] matrices;
+        private int mDepth;
+
+        public MatrixStack(int maxDepth) {
+            matrices = new float[maxDepth * 16];
+            reset();
+        }
+
+        /* Empties the stack, leaving only the identity matrix. */
+        public void reset() {
+            mDepth = 0;
+            Matrix.setIdentityM(matrices, 0);
+        }
+
+        /* Returns the index of the top matrix in the array. */
+        public int getOffset() { return mDepth * 16; }
+
+        public void push() {
+            if ((mDepth + 1) * 16 >= matrices.length)
+                throw new IllegalStateException("Matrix stack overflow");
+            System.arraycopy(matrices, mDepth * 16, matrices, (mDepth + 1) * 16, 16);
+            mDepth++;
+        }
+
+        public void pop() {
+            if (mDepth == 0)
+                throw new IllegalStateException("Matrix stack underflow");
+            mDepth--;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.GLES20State;
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Remembers the GL state that layers change most often, so that calls that wouldn't change
+ * anything never reach the driver. On low-end chipsets each call into the driver costs enough
+ * to show up in the frame time, even when it's a no-op.
+ *
+ * All drawing code has to change the tracked state through this class, or the cache goes stale.
+ * Tracked are the bound 2D texture and array buffer, the vertex and texture coordinate arrays,
+ * blending and its function, the scissor test and rectangle, and the matrix mode. Must only be
+ * used on the GL thread.
+ *
+ * This class is also where the compositor's two backends part ways. Transforms, vertex arrays
+ * and draw calls all go through here; this class implements them with the OpenGL ES 1.x fixed
+ * function pipeline, and GLES20State with shaders. Calls that the two APIs share, such as
+ * texture uploads, are made on the GL10 object directly.
+ */
+public class GLState {
+    private static GLState sSharedInstance;
+
+    /* Means "we don't know"; no GL enum or texture name we track has this value. */
+    private static final int UNKNOWN = -1;
+
+    private int mBoundTexture;
+    private int mBoundArrayBuffer;
+    private int mMatrixMode;
+    private int mBlendSrc, mBlendDst;
+    private int mScissorX, mScissorY, mScissorWidth, mScissorHeight;
+    /* Each of these is 1 if enabled, 0 if disabled, or UNKNOWN. */
+    private int mBlend, mScissorTest, mVertexArray, mTexCoordArray;
+
+    private boolean mBufferObjectsSupported;
+
+    protected int mSkippedCallCount;
+
+    protected GLState() {
+        invalidate();
+    }
+
+    public static GLState get() {
+        if (sSharedInstance == null)
+            sSharedInstance = new GLState();
+        return sSharedInstance;
+    }
+
+    /**
+     * Chooses the backend for the GL context that's about to be set up: shaders if it's an
+     * OpenGL ES 2.0 context, or the fixed function pipeline otherwise.
+     */
+    public static void select(boolean gles20) {
+        if (gles20 != get().isGLES20())
+            sSharedInstance = gles20 ? new GLES20State() : new GLState();
+    }
+
+    /** The renderer calls this when a new surface is created. */
+    public void surfaceCreated(GL10 gl) {
+        invalidate();
+
+        /* Buffer objects are core in OpenGL ES 1.1, but not 1.0. */
+        String version = gl.glGetString(GL10.GL_VERSION);
+        mBufferObjectsSupported = gl instanceof GL11 && version != null &&
+                                  !version.contains(" 1.0");
+    }
+
+    public boolean isGLES20() { return false; }
+
+    /** Returns true if vertex data can be kept in buffer objects. */
+    public boolean supportsBufferObjects() { return mBufferObjectsSupported; }
+
+    /**
+     * Forgets everything we know about the GL state. The renderer calls this when a new surface
+     * is created, since the new context starts out in its own state.
+     */
+    public void invalidate() {
+        mBoundTexture = mBoundArrayBuffer = mMatrixMode = UNKNOWN;
+        mBlendSrc = mBlendDst = UNKNOWN;
+        mScissorX = mScissorY = mScissorWidth = mScissorHeight = UNKNOWN;
+        mBlend = mScissorTest = mVertexArray = mTexCoordArray = UNKNOWN;
+    }
+
+    /** Returns the number of calls skipped since the last call. */
+    public int takeSkippedCallCount() {
+        int count = mSkippedCallCount;
+        mSkippedCallCount = 0;
+        return count;
+    }
+
+    public void bindTexture(GL10 gl, int textureID) {
+        if (mBoundTexture == textureID) {
+            mSkippedCallCount++;
+            return;
+        }
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, textureID);
+        mBoundTexture = textureID;
+    }
+
+    /** Must be called after textures are deleted, since deleting the bound texture unbinds it. */
+    public void texturesDeleted(int[] textureIDs) {
+        for (int i = 0; i < textureIDs.length; i++) {
+            if (textureIDs[i] == mBoundTexture)
+                mBoundTexture = 0;
+        }
+    }
+
+    public void bindArrayBuffer(GL10 gl, int bufferID) {
+        if (mBoundArrayBuffer == bufferID) {
+            mSkippedCallCount++;
+            return;
+        }
+        applyBindArrayBuffer(gl, bufferID);
+        mBoundArrayBuffer = bufferID;
+    }
+
+    /* Deleting the bound buffer unbinds it, so we keep track of that here too. */
+    public void deleteBuffers(GL10 gl, int[] bufferIDs) {
+        applyDeleteBuffers(gl, bufferIDs);
+        for (int i = 0; i < bufferIDs.length; i++) {
+            if (bufferIDs[i] == mBoundArrayBuffer)
+                mBoundArrayBuffer = 0;
+        }
+    }
+
+    /** Creates a buffer object. The buffer isn't bound. */
+    public int genBuffer(GL10 gl) {
+        int[] bufferIDs = new int[1];
+        ((GL11)gl).glGenBuffers(1, bufferIDs, 0);
+        return bufferIDs[0];
+    }
+
+    /** Allocates storage for the bound array buffer and fills it with the given data. */
+    public void bufferData(GL10 gl, int byteCount, Buffer data) {
+        ((GL11)gl).glBufferData(GL11.GL_ARRAY_BUFFER, byteCount, data, GL11.GL_STATIC_DRAW);
+    }
+
+    /** Overwrites the start of the bound array buffer with the given data. */
+    public void bufferSubData(GL10 gl, int byteCount, Buffer data) {
+        ((GL11)gl).glBufferSubData(GL11.GL_ARRAY_BUFFER, 0, byteCount, data);
+    }
+
+    protected void applyBindArrayBuffer(GL10 gl, int bufferID) {
+        ((GL11)gl).glBindBuffer(GL11.GL_ARRAY_BUFFER, bufferID);
+    }
+
+    protected void applyDeleteBuffers(GL10 gl, int[] bufferIDs) {
+        ((GL11)gl).glDeleteBuffers(bufferIDs.length, bufferIDs, 0);
+    }
+
+    /*
+     * Transforms. These work on the matrix that the matrix mode selects, like their GL10
+     * counterparts.
+     */
+
+    public void pushMatrix(GL10 gl) { gl.glPushMatrix(); }
+    public void popMatrix(GL10 gl) { gl.glPopMatrix(); }
+    public void loadIdentity(GL10 gl) { gl.glLoadIdentity(); }
+    public void translate(GL10 gl, float x, float y) { gl.glTranslatef(x, y, 0.0f); }
+    public void scale(GL10 gl, float x, float y) { gl.glScalef(x, y, 1.0f); }
+
+    /** Multiplies the current matrix by an orthographic projection with a depth of -10 to 10. */
+    public void ortho(GL10 gl, float left, float right, float bottom, float top) {
+        gl.glOrthof(left, right, bottom, top, -10.0f, 10.0f);
+    }
+
+    /*
+     * Vertex arrays and drawing.
+     */
+
+    /** Points GL_VERTEX_ARRAY or GL_TEXTURE_COORD_ARRAY at the given client memory. */
+    public void setArrayPointer(GL10 gl, int array, int componentCount, FloatBuffer values) {
+        if (array == GL10.GL_VERTEX_ARRAY)
+            gl.glVertexPointer(componentCount, GL10.GL_FLOAT, 0, values);
+        else
+            gl.glTexCoordPointer(componentCount, GL10.GL_FLOAT, 0, values);
+    }
+
+    /** Points GL_VERTEX_ARRAY or GL_TEXTURE_COORD_ARRAY at the bound array buffer. */
+    public void setArrayPointer(GL10 gl, int array, int componentCount) {
+        GL11 gl11 = (GL11)gl;
+        if (array == GL10.GL_VERTEX_ARRAY)
+            gl11.glVertexPointer(componentCount, GL10.GL_FLOAT, 0, 0);
+        else
+            gl11.glTexCoordPointer(componentCount, GL10.GL_FLOAT, 0, 0);
+    }
+
+    /**
+     * Draws a textured triangle strip with the bound texture. If repeat is true, the texture is
+     * meant to tile; here the texture's own wrap mode takes care of that.
+     */
+    public void drawTriangleStrip(GL10 gl, int count, boolean repeat) {
+        gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, count);
+    }
+
+    public void matrixMode(GL10 gl, int mode) {
+        if (mMatrixMode == mode) {
+            mSkippedCallCount++;
+            return;
+        }
+        gl.glMatrixMode(mode);
+        mMatrixMode = mode;
+    }
+
+    public void blendFunc(GL10 gl, int src, int dst) {
+        if (mBlendSrc == src && mBlendDst == dst) {
+            mSkippedCallCount++;
+            return;
+        }
+        gl.glBlendFunc(src, dst);
+        mBlendSrc = src;
+        mBlendDst = dst;
+    }
+
+    public void scissor(GL10 gl, int x, int y, int width, int height) {
+        if (mScissorX == x && mScissorY == y && mScissorWidth == width &&
+                mScissorHeight == height) {
+            mSkippedCallCount++;
+            return;
+        }
+        gl.glScissor(x, y, width, height);
+        mScissorX = x; mScissorY = y; mScissorWidth = width; mScissorHeight = height;
+    }
+
+    /** Enables or disables GL_BLEND or GL_SCISSOR_TEST. */
+    public void setEnabled(GL10 gl, int capability, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        switch (capability) {
+        case GL10.GL_BLEND:
+            if (mBlend == value)
+                break;
+            mBlend = value;
+            setCapability(gl, capability, enabled);
+            return;
+        case GL10.GL_SCISSOR_TEST:
+            if (mScissorTest == value)
+                break;
+            mScissorTest = value;
+            setCapability(gl, capability, enabled);
+            return;
+        default:
+            throw new IllegalArgumentException("Untracked capability " + capability);
+        }
+        mSkippedCallCount++;
+    }
+
+    /** Enables or disables GL_VERTEX_ARRAY or GL_TEXTURE_COORD_ARRAY. */
+    public void setClientStateEnabled(GL10 gl, int array, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        switch (array) {
+        case GL10.GL_VERTEX_ARRAY:
+            if (mVertexArray == value)
+                break;
+            mVertexArray = value;
+            applyClientState(gl, array, enabled);
+            return;
+        case GL10.GL_TEXTURE_COORD_ARRAY:
+            if (mTexCoordArray == value)
+                break;
+            mTexCoordArray = value;
+            applyClientState(gl, array, enabled);
+            return;
+        default:
+            throw new IllegalArgumentException("Untracked client state " + array);
+        }
+        mSkippedCallCount++;
+    }
+
+    private static void setCapability(GL10 gl, int capability, boolean enabled) {
+        if (enabled)
+            gl.glEnable(capability);
+        else
+            gl.glDisable(capability);
+    }
+
+    protected void applyClientState(GL10 gl, int array, boolean enabled) {
+        if (enabled)
+            gl.glEnableClientState(array);
+        else
+            gl.glDisableClientState(array);
+    }
+}
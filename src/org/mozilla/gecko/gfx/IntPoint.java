@@ -42,6 +42,17 @@ public class IntPoint {
 
     public IntPoint(int inX, int inY) { x = inX; y = inY; }
 
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof IntPoint))
+            return false;
+        IntPoint otherPoint = (IntPoint)other;
+        return x == otherPoint.x && y == otherPoint.y;
+    }
+
+    @Override
+    public int hashCode() { return x * 31 + y; }
+
     @Override
     public String toString() { return "(" + x + ", " + y + ")"; }
 
@@ -38,6 +38,8 @@
 package org.mozilla.gecko.gfx;
 
 import org.mozilla.gecko.gfx.FloatPoint;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.GLState;
 import javax.microedition.khronos.opengles.GL10;
 
 public abstract class Layer {
@@ -49,10 +51,52 @@ public abstract class Layer {
 
     /** Draws the layer. Automatically applies the translation. */
     public final void draw(GL10 gl) {
-        gl.glPushMatrix();
-        gl.glTranslatef(origin.x, origin.y, 0.0f);
+        GLState.get().pushMatrix(gl);
+        GLState.get().translate(gl, origin.x, origin.y);
         onDraw(gl);
-        gl.glPopMatrix();
+        GLState.get().popMatrix(gl);
+    }
+
+    /**
+     * Draws the layer, skipping any parts of it that fall outside the given rect. The rect is
+     * given in the coordinate system of the layer's parent. Automatically applies the translation.
+     * A layer with bounds that lie entirely outside the rect isn't drawn at all.
+     */
+    public final void draw(GL10 gl, FloatRect visibleRect) {
+        FloatRect bounds = getBounds();
+        if (bounds != null && !bounds.intersects(visibleRect))
+            return;
+
+        GLState.get().pushMatrix(gl);
+        GLState.get().translate(gl, origin.x, origin.y);
+        onDraw(gl, visibleRect);
+        GLState.get().popMatrix(gl);
+    }
+
+    /**
+     * Releases the GPU resources and images held by this layer. Layers that own textures override
+     * this; the owner of a layer calls it as soon as the layer is no longer going to be drawn,
+     * rather than leaving the textures to the garbage collector. By default, a no-op.
+     */
+    public void destroy() {}
+
+    /**
+     * Returns the rect that the layer draws into, in the coordinate system of its parent, or null
+     * if it isn't known. By default, it isn't.
+     */
+    public FloatRect getBounds() { return null; }
+
+    /** Returns true if every pixel the layer draws is opaque. By default, false. */
+    public boolean isOpaque() { return false; }
+
+    /**
+     * Returns true if the layer draws opaque pixels over all of the given rect, which is in the
+     * coordinate system of the layer's parent. Nothing drawn underneath that rect will show, so
+     * the renderer can skip drawing it.
+     */
+    public boolean coversRect(FloatRect rect) {
+        FloatRect bounds = getBounds();
+        return bounds != null && isOpaque() && bounds.contains(rect);
     }
 
     /**
@@ -61,5 +105,15 @@ public abstract class Layer {
      * Invariant: The current matrix mode must be GL_MODELVIEW both before and after this call.
      */
     protected abstract void onDraw(GL10 gl);
+
+    /**
+     * Subclasses that can avoid drawing the parts of themselves that aren't visible override this
+     * method. The rect is passed through as given to draw(), in the coordinate system of the
+     * layer's parent, so that drawing doesn't allocate a translated copy every frame; subtract the
+     * origin to get it in the layer's own coordinates. By default, the whole layer is drawn.
+     */
+    protected void onDraw(GL10 gl, FloatRect visibleRect) {
+        onDraw(gl);
+    }
 }
 
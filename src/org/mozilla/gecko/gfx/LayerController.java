@@ -44,6 +44,8 @@ import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.Layer;
 import org.mozilla.gecko.gfx.LayerClient;
 import org.mozilla.gecko.gfx.LayerView;
+import org.mozilla.gecko.gfx.PrefetchPlanner;
+import org.mozilla.gecko.gfx.TiledLayer;
 import org.mozilla.gecko.ui.PanZoomController;
 import android.content.Context;
 import android.content.res.Resources;
@@ -75,6 +77,9 @@ public class LayerController {
      * updates our visible rect appropriately.
      */
 
+    private PrefetchPlanner mPrefetchPlanner;
+    /* Decides which tiles to render ahead of the user, based on the pan/zoom velocity. */
+
     private OnTouchListener mOnTouchListener;   /* The touch listener. */
     private LayerClient mLayerClient;           /* The layer client. */
 
@@ -109,10 +114,17 @@ public class LayerController {
             mPageSize = new IntSize(LayerController.TILE_WIDTH, LayerController.TILE_HEIGHT);
 
         mPanZoomController = new PanZoomController(this);
+        mPrefetchPlanner = new PrefetchPlanner(this, mPanZoomController);
         mView = new LayerView(context, this);
     }
 
-    public void setRoot(Layer layer) { mRootLayer = layer; }
+    /** Sets the root layer, destroying the old one. */
+    public void setRoot(Layer layer) {
+        Layer oldRootLayer = mRootLayer;
+        mRootLayer = layer;
+        if (oldRootLayer != null && oldRootLayer != layer)
+            oldRootLayer.destroy();
+    }
 
     public void setLayerClient(LayerClient layerClient) {
         mLayerClient = layerClient;
@@ -163,8 +175,14 @@ public class LayerController {
         notifyLayerClientOfGeometryChange();
     }
 
+    /**
+     * Schedules a frame to be drawn. Call this whenever the visible rect or the contents of any
+     * layer change; the view otherwise draws nothing while the page sits idle. This may be called
+     * from any thread.
+     */
     public void setNeedsDisplay() {
-        // TODO
+        if (mView != null)
+            mView.requestRender();
     }
 
     public void scrollTo(float x, float y) {
@@ -172,7 +190,11 @@ public class LayerController {
     }
 
     public void setVisibleRect(float x, float y, float width, float height) {
-        mVisibleRect = new FloatRect(x, y, width, height);
+        FloatRect visibleRect = new FloatRect(x, y, width, height);
+        if (visibleRect.equals(mVisibleRect))
+            return;
+
+        mVisibleRect = visibleRect;
         setNeedsDisplay();
     }
 
@@ -194,6 +216,7 @@ public class LayerController {
     public void setPageSize(IntSize size) {
         mPageSize = size.scale(getZoomFactor());
         mView.notifyRendererOfPageSizeChange();
+        setNeedsDisplay();
     }
 
     public boolean post(Runnable action) { return mView.post(action); }
@@ -225,12 +248,38 @@ public class LayerController {
         return aboutToCheckerboard();
     }
 
+    /**
+     * Returns the rect that the layer client should keep painted: the visible rect widened by the
+     * danger zone on each side, clipped to the page.
+     */
+    public FloatRect getRenderRect() {
+        FloatRect pageRect = new FloatRect(0.0f, 0.0f, mPageSize.width, mPageSize.height);
+        return mVisibleRect.contract(-DANGER_ZONE_X, -DANGER_ZONE_Y).intersect(pageRect);
+    }
+
+    /**
+     * Returns the tiles of a tiled root layer that the layer client should render, most urgent
+     * first. This includes tiles ahead of the visible rect in the direction the user is moving.
+     */
+    public ArrayList<IntPoint> getTilesToRender() {
+        if (!(mRootLayer instanceof TiledLayer))
+            return new ArrayList<IntPoint>();
+        return mPrefetchPlanner.getMissingTiles((TiledLayer)mRootLayer);
+    }
+
     private FloatRect getTileRect() {
         return new FloatRect(mRootLayer.origin.x, mRootLayer.origin.y, TILE_WIDTH, TILE_HEIGHT);
     }
 
     // Returns true if a checkerboard is about to be visible.
     private boolean aboutToCheckerboard() {
+        /*
+         * A tiled root is checked tile by tile: any unpainted tile near the visible rect or along
+         * the path the user is moving in counts.
+         */
+        if (mRootLayer instanceof TiledLayer)
+            return !getTilesToRender().isEmpty();
+
         IntRect pageRect = new IntRect(0, 0, mPageSize.width, mPageSize.height);
         IntRect adjustedPageRect = pageRect.contract(DANGER_ZONE_X, DANGER_ZONE_Y);
         FloatRect visiblePageRect = mVisibleRect.intersect(new FloatRect(adjustedPageRect));
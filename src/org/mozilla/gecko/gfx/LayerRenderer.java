@@ -38,16 +38,22 @@
 package org.mozilla.gecko.gfx;
 
 import org.mozilla.gecko.gfx.BufferedCairoImage;
+import org.mozilla.gecko.gfx.CairoImage;
 import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.FrameTimeHistogram;
+import org.mozilla.gecko.gfx.GLState;
 import org.mozilla.gecko.gfx.IntRect;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.LayerController;
 import org.mozilla.gecko.gfx.LayerView;
 import org.mozilla.gecko.gfx.NinePatchTileLayer;
 import org.mozilla.gecko.gfx.SingleTileLayer;
+import org.mozilla.gecko.gfx.SnapshotWriter;
+import org.mozilla.gecko.gfx.TextureAtlas;
 import org.mozilla.gecko.gfx.TextureReaper;
 import org.mozilla.gecko.gfx.TextLayer;
 import org.mozilla.gecko.gfx.TileLayer;
+import org.mozilla.gecko.gfx.VertexBuffer;
 import android.content.Context;
 import android.opengl.GLSurfaceView;
 import android.util.DisplayMetrics;
@@ -56,87 +62,310 @@ import android.view.WindowManager;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * The layer renderer implements the rendering logic for a layer view.
  */
 public class LayerRenderer implements GLSurfaceView.Renderer {
+    private static final String LOG_NAME = "LayerRenderer";
+
     private static final float BACKGROUND_COLOR_R = 0.81f;
     private static final float BACKGROUND_COLOR_G = 0.81f;
     private static final float BACKGROUND_COLOR_B = 0.81f;
 
+    private static final int UTILITY_ATLAS_SIZE = 256;
+    /* The size of the atlas texture shared by the small layers the renderer draws itself. */
+
+    /*
+     * The phases of a frame, which together make up the interval between it and the next frame.
+     * The swap phase covers the time from the end of drawing to the start of the next frame,
+     * which is mostly spent in eglSwapBuffers waiting for the GPU.
+     */
+    public static final int PHASE_REAP = 0;
+    public static final int PHASE_CLEAR = 1;
+    public static final int PHASE_SHADOW = 2;
+    public static final int PHASE_CHECKERBOARD = 3;
+    public static final int PHASE_ROOT_LAYER = 4;
+    public static final int PHASE_OVERLAY = 5;
+    public static final int PHASE_SWAP = 6;
+    public static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = {
+        "reap", "clear", "shadow", "checkerboard", "root layer", "overlay", "swap"
+    };
+
     private LayerView mView;
     private SingleTileLayer mCheckerboardLayer;
     private NinePatchTileLayer mShadowLayer;
     private TextLayer mFPSLayer;
+    private TextureAtlas mUtilityAtlas;
+    private GL10 mGL;   /* The GL of the current surface, for work queued onto the GL thread. */
 
     // FPS display
     private long mFrameCountTimestamp;
     private int mFrameCount;            // number of frames since last timestamp
 
+    // Texture upload statistics, reported along with the frame rate
+    private int mUploadedByteCount;     // bytes uploaded since last timestamp
+    private int mMaxFrameUploadedByteCount;
+    private int mLastFrameUploadedByteCount;
+    private int mLastFrameSkippedGLCallCount;
+
+    // Frame timing. A frame's time is the interval until the next frame starts, so it's only
+    // recorded then. The phase times of the frame in progress are kept apart from those of the
+    // last finished frame, so that drawing a snapshot in between doesn't count.
+    private FrameTimeHistogram mFrameTimes;
+    private AtomicLongArray mPhaseTotals;   // nanoseconds spent in each phase, over all frames
+    private long[] mCurrentPhaseTimes;
+    private long[] mLastFramePhaseTimes;
+    private long mPhaseStartTime;
+    private long mLastFrameStartTime;
+    private long mLastFrameEndTime;
+    private AtomicLong mRenderRequestTime;  // when the next frame was first asked for, or 0
+    private int mLastOverBudgetCount;
+
     public LayerRenderer(LayerView view) {
         mView = view;
 
         /* FIXME: Layers should not be directly connected to the layer controller. */
         LayerController controller = view.getController();
+        mUtilityAtlas = new TextureAtlas(UTILITY_ATLAS_SIZE, UTILITY_ATLAS_SIZE);
+
+        /* The checkerboard repeats, so it can't share the atlas and gets a texture of its own. */
+        CairoImage checkerboardImage = new BufferedCairoImage(controller.getCheckerboardPattern());
         mCheckerboardLayer = new SingleTileLayer(true);
-        mCheckerboardLayer.paintImage(new BufferedCairoImage(controller.getCheckerboardPattern()));
+        mCheckerboardLayer.paintImage(checkerboardImage);
+        checkerboardImage.release();
+
+        CairoImage shadowImage = new BufferedCairoImage(controller.getShadowPattern());
         mShadowLayer = new NinePatchTileLayer(controller);
-        mShadowLayer.paintImage(new BufferedCairoImage(controller.getShadowPattern()));
+        mShadowLayer.setAtlas(mUtilityAtlas);
+        mShadowLayer.paintImage(shadowImage);
+        shadowImage.release();
+
         mFPSLayer = new TextLayer(new IntSize(64, 32));
+        mFPSLayer.setAtlas(mUtilityAtlas);
         mFPSLayer.setText("-- FPS");
 
         mFrameCountTimestamp = System.currentTimeMillis();
         mFrameCount = 0;
+
+        mFrameTimes = new FrameTimeHistogram();
+        mPhaseTotals = new AtomicLongArray(PHASE_COUNT);
+        mCurrentPhaseTimes = new long[PHASE_COUNT];
+        mLastFramePhaseTimes = new long[PHASE_COUNT];
+        mRenderRequestTime = new AtomicLong(0);
     }
 
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        mGL = gl;
+        GLState.select(mView.usesGLES20());
+        GLState glState = GLState.get();
+        glState.surfaceCreated(gl);
+        VertexBuffer.surfaceCreated();
+        TextureReaper.get().surfaceCreated();
+
         gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
         gl.glClearDepthf(1.0f);             /* FIXME: Is this needed? */
-        gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_FASTEST);
-        gl.glShadeModel(GL10.GL_SMOOTH);    /* FIXME: Is this needed? */
         gl.glDisable(GL10.GL_DITHER);
-        gl.glEnable(GL10.GL_TEXTURE_2D);
+
+        /*
+         * Images are packed without any row padding, and RGB565 and RGB24 rows aren't always a
+         * multiple of four bytes long, so don't let GL assume they are.
+         */
+        gl.glPixelStorei(GL10.GL_UNPACK_ALIGNMENT, 1);
+
+        /* These are fixed-function state; the shaders take care of them in OpenGL ES 2.0. */
+        if (!glState.isGLES20()) {
+            gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_FASTEST);
+            gl.glShadeModel(GL10.GL_SMOOTH);    /* FIXME: Is this needed? */
+            gl.glEnable(GL10.GL_TEXTURE_2D);
+        }
+
+        String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+        TileLayer.setNPOTSupported(glState.isGLES20() ||
+                                   (extensions != null &&
+                                    (extensions.contains("GL_OES_texture_npot") ||
+                                     extensions.contains("GL_ARB_texture_non_power_of_two"))));
+        TileLayer.setUnpackSubimageSupported(extensions != null &&
+                                             extensions.contains("GL_EXT_unpack_subimage"));
+        TileLayer.setETC1Supported(extensions != null &&
+                                   extensions.contains("GL_OES_compressed_ETC1_RGB8_texture"));
     }
 
+    /*
+     * Each frame happens in one pass, in this order: animations are kicked off for the next frame,
+     * dead textures are deleted, and then the layers upload their pending pixels as they draw.
+     */
     public void onDrawFrame(GL10 gl) {
+        long frameStartTime = System.nanoTime();
+        recordLastFrame(frameStartTime);
+        mPhaseStartTime = frameStartTime;
+
+        mView.getFrameScheduler().onFrameStart();
         checkFPS();
         TextureReaper.get().reap(gl);
+        endPhase(PHASE_REAP);
+
+        drawContent(gl);
+
+        /* Draw the FPS. */
+        GLState.get().loadIdentity(gl);
+        GLState.get().setEnabled(gl, GL10.GL_BLEND, true);
+        mFPSLayer.draw(gl);
+        GLState.get().setEnabled(gl, GL10.GL_BLEND, false);
+        endPhase(PHASE_OVERLAY);
+
+        System.arraycopy(mCurrentPhaseTimes, 0, mLastFramePhaseTimes, 0, PHASE_COUNT);
+        mLastFrameEndTime = mPhaseStartTime;
 
+        mLastFrameSkippedGLCallCount = GLState.get().takeSkippedCallCount();
+        mLastFrameUploadedByteCount = TileLayer.takeUploadedByteCount();
+        mUploadedByteCount += mLastFrameUploadedByteCount;
+        mMaxFrameUploadedByteCount = Math.max(mMaxFrameUploadedByteCount,
+                                              mLastFrameUploadedByteCount);
+    }
+
+    /*
+     * Draws the page and everything around it, but none of the overlays. If opaque page content
+     * covers the whole screen, the background, shadow, and checkerboard would all be drawn over,
+     * so they're skipped. The root layer is clipped to the page, so that can only happen when the
+     * page fills the screen; tiles reaching past the edge of the page don't count.
+     */
+    private void drawContent(GL10 gl) {
         LayerController controller = mView.getController();
+        Layer rootLayer = controller.getRoot();
+        FloatRect visibleRect = controller.getVisibleRect();
+        IntSize pageSize = controller.getPageSize();
+        FloatRect pageBounds = new FloatRect(0.0f, 0.0f, pageSize.width, pageSize.height);
+        boolean covered = rootLayer != null && pageBounds.contains(visibleRect) &&
+                          rootLayer.coversRect(visibleRect);
 
         /* Draw the background. */
-        gl.glClearColor(BACKGROUND_COLOR_R, BACKGROUND_COLOR_G, BACKGROUND_COLOR_B, 1.0f);
-        gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
+        if (!covered) {
+            gl.glClearColor(BACKGROUND_COLOR_R, BACKGROUND_COLOR_G, BACKGROUND_COLOR_B, 1.0f);
+            gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
+        }
+        endPhase(PHASE_CLEAR);
 
         /* Draw the drop shadow. */
         setupPageTransform(gl);
-        mShadowLayer.draw(gl);
+        if (!covered)
+            mShadowLayer.draw(gl);
+        endPhase(PHASE_SHADOW);
 
         /* Draw the checkerboard. */
         IntRect pageRect = clampToScreen(getPageRect());
         IntSize screenSize = controller.getScreenSize();
-        gl.glEnable(GL10.GL_SCISSOR_TEST);
-        gl.glScissor(pageRect.x, screenSize.height - (pageRect.y + pageRect.height),
-                     pageRect.width, pageRect.height);
+        GLState.get().setEnabled(gl, GL10.GL_SCISSOR_TEST, true);
+        GLState.get().scissor(gl, pageRect.x, screenSize.height - (pageRect.y + pageRect.height),
+                              pageRect.width, pageRect.height);
 
-        gl.glLoadIdentity();
-        mCheckerboardLayer.draw(gl);
+        GLState.get().loadIdentity(gl);
+        if (!covered)
+            mCheckerboardLayer.draw(gl);
+        endPhase(PHASE_CHECKERBOARD);
 
         /* Draw the layer the client added to us. */
         setupPageTransform(gl);
-
-        Layer rootLayer = controller.getRoot();
         if (rootLayer != null)
-            rootLayer.draw(gl);
+            rootLayer.draw(gl, visibleRect);
 
-        gl.glDisable(GL10.GL_SCISSOR_TEST);
+        GLState.get().setEnabled(gl, GL10.GL_SCISSOR_TEST, false);
+        endPhase(PHASE_ROOT_LAYER);
+    }
 
-        /* Draw the FPS. */
-        gl.glLoadIdentity();
-        gl.glEnable(GL10.GL_BLEND);
-        mFPSLayer.draw(gl);
-        gl.glDisable(GL10.GL_BLEND);
+    /**
+     * The view calls this whenever a frame is requested, so that time spent idle between frames
+     * isn't counted against the frame before. Can be called on any thread.
+     */
+    public void renderRequested() {
+        mRenderRequestTime.compareAndSet(0, System.nanoTime());
+    }
+
+    /*
+     * Records the last frame, now that we know when the next one starts. If the next frame was
+     * asked for while the last one was still drawing, or we're rendering continuously, the GL
+     * thread was busy all along and the frame lasted until now. Otherwise the GL thread went idle
+     * at some point after the buffer swap, so only the drawing is counted.
+     */
+    private void recordLastFrame(long now) {
+        long requestTime = mRenderRequestTime.getAndSet(0);
+        if (mLastFrameStartTime != 0) {
+            boolean idle = requestTime > mLastFrameEndTime;
+            long frameEndTime = idle ? mLastFrameEndTime : now;
+            mLastFramePhaseTimes[PHASE_SWAP] = frameEndTime - mLastFrameEndTime;
+
+            mFrameTimes.record(frameEndTime - mLastFrameStartTime);
+            for (int i = 0; i < PHASE_COUNT; i++)
+                mPhaseTotals.addAndGet(i, mLastFramePhaseTimes[i]);
+        }
+        mLastFrameStartTime = now;
+    }
+
+    /* Charges the time since the end of the last phase to the given phase. */
+    private void endPhase(int phase) {
+        long now = System.nanoTime();
+        mCurrentPhaseTimes[phase] = now - mPhaseStartTime;
+        mPhaseStartTime = now;
+    }
+
+    /**
+     * Draws the page into the back buffer, without overlays, and hands the visible part of it to
+     * the snapshot writer. The geometry is recorded at the current zoom factor, so that the
+     * snapshot can be shown pixel for pixel at a zoom factor of 1. Must be called on the GL
+     * thread; the back buffer is redrawn before the next frame is shown anyway.
+     */
+    public void captureSnapshot(SnapshotWriter writer) {
+        LayerController controller = mView.getController();
+        if (mGL == null || controller.getRoot() == null)
+            return;
+
+        IntRect rect = clampToScreen(getPageRect());
+        if (rect.width <= 0 || rect.height <= 0)
+            return;
+
+        long startTime = System.currentTimeMillis();
+        drawContent(mGL);
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(rect.width * rect.height * 4);
+        IntSize screenSize = controller.getScreenSize();
+        mGL.glReadPixels(rect.x, screenSize.height - (rect.y + rect.height), rect.width,
+                         rect.height, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+        Log.i(LOG_NAME, "Read back a " + rect.width + "x" + rect.height + " snapshot in " +
+              (System.currentTimeMillis() - startTime) + " ms");
+
+        float zoomFactor = controller.getZoomFactor();
+        FloatRect visibleRect = controller.getVisibleRect();
+        FloatRect snapshotRect = new FloatRect(Math.round(visibleRect.x * zoomFactor) + rect.x,
+                                               Math.round(visibleRect.y * zoomFactor) + rect.y,
+                                               rect.width, rect.height);
+        writer.write(pixels, rect.width, rect.height, controller.getPageSize().scale(zoomFactor),
+                     snapshotRect);
+    }
+
+    /** Returns the number of bytes uploaded to textures in the last frame. */
+    public int getLastFrameUploadedByteCount() { return mLastFrameUploadedByteCount; }
+
+    /** Returns the number of redundant GL calls that GLState skipped in the last frame. */
+    public int getLastFrameSkippedGLCallCount() { return mLastFrameSkippedGLCallCount; }
+
+    /**
+     * Returns the histogram of frame times, each being the interval from the start of a frame to
+     * the start of the next, including the buffer swap. It's safe to query from any thread.
+     */
+    public FrameTimeHistogram getFrameTimes() { return mFrameTimes; }
+
+    /**
+     * Returns the average time spent in the given phase (a PHASE_* constant) per frame, in
+     * microseconds. Most phases take well under a millisecond, so they're averaged rather than
+     * kept in histograms.
+     */
+    public long getAveragePhaseTime(int phase) {
+        int frameCount = mFrameTimes.getFrameCount();
+        return frameCount == 0 ? 0 : mPhaseTotals.get(phase) / frameCount / 1000;
     }
 
     public void pageSizeChanged() {
@@ -148,9 +377,9 @@ public class LayerRenderer implements GLSurfaceView.Renderer {
         FloatRect visibleRect = controller.getVisibleRect();
         float zoomFactor = controller.getZoomFactor();
 
-        gl.glLoadIdentity();
-        gl.glScalef(zoomFactor, zoomFactor, 1.0f);
-        gl.glTranslatef(-visibleRect.x, -visibleRect.y, 0.0f);
+        GLState.get().loadIdentity(gl);
+        GLState.get().scale(gl, zoomFactor, zoomFactor);
+        GLState.get().translate(gl, -visibleRect.x, -visibleRect.y);
     }
 
     private IntRect getPageRect() {
@@ -178,14 +407,17 @@ public class LayerRenderer implements GLSurfaceView.Renderer {
 
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         gl.glViewport(0, 0, width, height);
-        gl.glMatrixMode(GL10.GL_PROJECTION);
-        gl.glLoadIdentity();
-        gl.glOrthof(0.0f, (float)width, (float)height, 0.0f, -10.0f, 10.0f);
-        gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glLoadIdentity();
+        GLState.get().matrixMode(gl, GL10.GL_PROJECTION);
+        GLState.get().loadIdentity(gl);
+        GLState.get().ortho(gl, 0.0f, (float)width, (float)height, 0.0f);
+        GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
+        GLState.get().loadIdentity(gl);
 
         mView.setScreenSize(width, height);
 
+        /* Don't count the time the surface was gone as part of a frame. */
+        mLastFrameStartTime = 0;
+
         /* TODO: Throw away tile images? */
     }
 
@@ -193,7 +425,26 @@ public class LayerRenderer implements GLSurfaceView.Renderer {
         if (System.currentTimeMillis() >= mFrameCountTimestamp + 1000) {
             mFrameCountTimestamp = System.currentTimeMillis();
             mFPSLayer.setText(mFrameCount + " FPS");
-            mFrameCount = 0;
+            if (mUploadedByteCount > 0) {
+                Log.i(LOG_NAME, "Uploaded " + mUploadedByteCount / Math.max(mFrameCount, 1) +
+                      " bytes/frame on average, " + mMaxFrameUploadedByteCount + " at most");
+            }
+
+            /* Log the frame times whenever a frame has gone over budget, since that's a hitch. */
+            int overBudgetCount = mFrameTimes.getOverBudgetCount();
+            if (overBudgetCount > mLastOverBudgetCount) {
+                StringBuilder phases = new StringBuilder();
+                for (int i = 0; i < PHASE_COUNT; i++) {
+                    phases.append(i == 0 ? "" : ", ").append(PHASE_NAMES[i]).append(' ');
+                    phases.append(getAveragePhaseTime(i)).append(" us");
+                }
+                Log.i(LOG_NAME, "Frame times: " + mFrameTimes + "; average phases: " + phases);
+            }
+            mLastOverBudgetCount = overBudgetCount;
+
+            /* This frame starts the new second, so it counts toward it. */
+            mFrameCount = 1;
+            mUploadedByteCount = mMaxFrameUploadedByteCount = 0;
         } else {
             mFrameCount++;
         }
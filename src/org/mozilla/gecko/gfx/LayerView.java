@@ -37,10 +37,16 @@
 
 package org.mozilla.gecko.gfx;
 
+import org.mozilla.gecko.gfx.FrameScheduler;
+import org.mozilla.gecko.gfx.FrameTimeHistogram;
 import org.mozilla.gecko.gfx.InputConnectionHandler;
 import org.mozilla.gecko.gfx.LayerController;
+import org.mozilla.gecko.gfx.SnapshotWriter;
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.pm.ConfigurationInfo;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.view.GestureDetector;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -55,20 +61,39 @@ import android.view.ScaleGestureDetector;
  * mediator between the LayerRenderer and the LayerController.
  */
 public class LayerView extends GLSurfaceView {
+    /*
+     * Set to true to composite with OpenGL ES 2.0 where the device supports it. Off for now: the
+     * EGL context version is fixed when the view is created, so if the shaders fail to compile or
+     * link on some driver, there's no falling back to the 1.x fixed function pipeline short of
+     * recreating the view, and the GL thread dies instead.
+     */
+    private static final boolean USE_GLES20 = false;
+
     private Context mContext;
     private LayerController mController;
     private InputConnectionHandler mInputConnectionHandler;
     private LayerRenderer mRenderer;
+    private FrameScheduler mFrameScheduler;
     private GestureDetector mGestureDetector;
     private ScaleGestureDetector mScaleGestureDetector;
+    private boolean mContinuousRendering;
+    private boolean mUsesGLES20;
 
     public LayerView(Context context, LayerController controller) {
         super(context);
 
         mContext = context;
         mController = controller;
+        mFrameScheduler = new FrameScheduler(this);
         mRenderer = new LayerRenderer(this);
+
+        /* The context version has to be chosen before the renderer is set. */
+        mUsesGLES20 = USE_GLES20 && supportsGLES20(context);
+        if (mUsesGLES20)
+            setEGLContextClientVersion(2);
+
         setRenderer(mRenderer);
+        setContinuousRendering(false);
         mGestureDetector = new GestureDetector(context, controller.getGestureListener());
         mScaleGestureDetector = new ScaleGestureDetector(context, controller.getScaleGestureListener());
         mInputConnectionHandler = null;
@@ -88,7 +113,60 @@ public class LayerView extends GLSurfaceView {
     }
 
     public LayerController getController() { return mController; }
-    public void geometryChanged() { /* TODO: Schedule a redraw. */ }
+    public FrameScheduler getFrameScheduler() { return mFrameScheduler; }
+
+    /** Returns true if the compositor draws with OpenGL ES 2.0 rather than 1.x. */
+    public boolean usesGLES20() { return mUsesGLES20; }
+    public void geometryChanged() { requestRender(); }
+
+    @Override
+    public void requestRender() {
+        if (mFrameScheduler.deferRender())
+            return;
+        mRenderer.renderRequested();
+        super.requestRender();
+    }
+
+    /**
+     * By default, a frame is drawn only when something on the screen changes. Continuous
+     * rendering redraws as fast as possible instead, which is useful when measuring the frame
+     * rate.
+     */
+    public void setContinuousRendering(boolean continuous) {
+        mContinuousRendering = continuous;
+        setRenderMode(continuous ? RENDERMODE_CONTINUOUSLY : RENDERMODE_WHEN_DIRTY);
+    }
+
+    public boolean getContinuousRendering() { return mContinuousRendering; }
+
+    /**
+     * Captures what's on the screen and hands it to the given writer. The capture happens on the
+     * GL thread; this returns right away.
+     */
+    public void takeSnapshot(final SnapshotWriter writer) {
+        queueEvent(new Runnable() {
+            public void run() {
+                mRenderer.captureSnapshot(writer);
+            }
+        });
+    }
+
+    /** Returns the renderer's frame time statistics. See LayerRenderer.getFrameTimes(). */
+    public FrameTimeHistogram getFrameTimes() { return mRenderer.getFrameTimes(); }
+
+    /*
+     * Besides the hardware, the compositor needs the glVertexAttribPointer() overload that takes
+     * a buffer offset, which only exists from API level 9 on.
+     */
+    private static boolean supportsGLES20(Context context) {
+        if (Build.VERSION.SDK_INT < 9)
+            return false;
+
+        ActivityManager activityManager =
+            (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        ConfigurationInfo info = activityManager.getDeviceConfigurationInfo();
+        return info.reqGlEsVersion >= 0x20000;
+    }
 
     public void notifyRendererOfPageSizeChange() {
         mRenderer.pageSizeChanged();
@@ -37,11 +37,12 @@
 
 package org.mozilla.gecko.gfx;
 
+import org.mozilla.gecko.gfx.GLState;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.LayerController;
 import org.mozilla.gecko.gfx.TileLayer;
+import org.mozilla.gecko.gfx.VertexBuffer;
 import javax.microedition.khronos.opengles.GL10;
-import java.nio.FloatBuffer;
 
 /**
  * Encapsulates the logic needed to draw a nine-patch bitmap using OpenGL ES.
@@ -50,8 +51,7 @@ import java.nio.FloatBuffer;
  *   http://developer.android.com/guide/topics/graphics/2d-graphics.html#nine-patch
  */
 public class NinePatchTileLayer extends TileLayer {
-    private FloatBuffer mSideTexCoordBuffer, mSideVertexBuffer;
-    private FloatBuffer mTopTexCoordBuffer, mTopVertexBuffer;
+    private VertexBuffer mSideVertexBuffer, mTopVertexBuffer;
     private LayerController mLayerController;
 
     private static final int PATCH_SIZE = 16;
@@ -90,17 +90,18 @@ public class NinePatchTileLayer extends TileLayer {
         0.50f,  0.25f,
     };
 
+    /* The texture coordinates are the same for every nine-patch layer. */
+    private static final VertexBuffer sSideTexCoordBuffer = new VertexBuffer(SIDE_TEX_COORDS);
+    private static final VertexBuffer sTopTexCoordBuffer = new VertexBuffer(TOP_TEX_COORDS);
+
     public NinePatchTileLayer(LayerController layerController) {
         super(false);
 
         mLayerController = layerController;
-
-        mSideTexCoordBuffer = createBuffer(SIDE_TEX_COORDS);
-        mTopTexCoordBuffer = createBuffer(TOP_TEX_COORDS);
-
         recreateVertexBuffers();
     }
 
+    /** Updates the vertices to match the page size. The buffers are updated in place. */
     public void recreateVertexBuffers() {
         IntSize pageSize = mLayerController.getPageSize();
 
@@ -122,55 +123,68 @@ public class NinePatchTileLayer extends TileLayer {
             pageSize.width, 0.0f,           0.0f
         };
 
-        mSideVertexBuffer = createBuffer(sideVertices);
-        mTopVertexBuffer = createBuffer(topVertices);
+        if (mSideVertexBuffer == null) {
+            mSideVertexBuffer = new VertexBuffer(sideVertices);
+            mTopVertexBuffer = new VertexBuffer(topVertices);
+        } else {
+            mSideVertexBuffer.update(sideVertices);
+            mTopVertexBuffer.update(topVertices);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        mSideVertexBuffer.destroy();
+        mTopVertexBuffer.destroy();
     }
 
     @Override
     protected void onTileDraw(GL10 gl) {
         IntSize pageSize = mLayerController.getPageSize();
 
-        gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
-        gl.glEnable(GL10.GL_BLEND);
+        GLState.get().blendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+        GLState.get().setEnabled(gl, GL10.GL_BLEND, true);
 
-        gl.glBindTexture(GL10.GL_TEXTURE_2D, getTextureID());
+        GLState.get().bindTexture(gl, getTextureID());
 
         /* Left side */
-        drawTriangles(gl, mSideVertexBuffer, mSideTexCoordBuffer, 8);
+        drawTriangles(gl, mSideVertexBuffer, sSideTexCoordBuffer, 8);
 
         /* Top */
-        drawTriangles(gl, mTopVertexBuffer, mTopTexCoordBuffer, 4);
+        drawTriangles(gl, mTopVertexBuffer, sTopTexCoordBuffer, 4);
 
         /* Right side */
-        gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glPushMatrix();
-        gl.glTranslatef(pageSize.width + PATCH_SIZE, 0.0f, 0.0f);
-        gl.glMatrixMode(GL10.GL_TEXTURE);
-        gl.glPushMatrix();
-        gl.glTranslatef(0.50f, 0.0f, 0.0f);
+        GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
+        GLState.get().pushMatrix(gl);
+        GLState.get().translate(gl, pageSize.width + PATCH_SIZE, 0.0f);
+        GLState.get().matrixMode(gl, GL10.GL_TEXTURE);
+        GLState.get().pushMatrix(gl);
+        GLState.get().translate(gl, 0.50f, 0.0f);
 
-        drawTriangles(gl, mSideVertexBuffer, mSideTexCoordBuffer, 8);
+        drawTriangles(gl, mSideVertexBuffer, sSideTexCoordBuffer, 8);
 
-        gl.glMatrixMode(GL10.GL_TEXTURE);
-        gl.glPopMatrix();
-        gl.glMatrixMode(GL10.GL_MODELVIEW);     /* Not strictly necessary, but here for clarity. */
-        gl.glPopMatrix();
+        GLState.get().matrixMode(gl, GL10.GL_TEXTURE);
+        GLState.get().popMatrix(gl);
+        /* Not strictly necessary, but here for clarity; GLState skips it anyway. */
+        GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
+        GLState.get().popMatrix(gl);
 
         /* Bottom */
-        gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glPushMatrix();
-        gl.glTranslatef(0.0f, pageSize.height + PATCH_SIZE, 0.0f);
-        gl.glMatrixMode(GL10.GL_TEXTURE);
-        gl.glPushMatrix();
-        gl.glTranslatef(0.0f, 0.50f, 0.0f);
+        GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
+        GLState.get().pushMatrix(gl);
+        GLState.get().translate(gl, 0.0f, pageSize.height + PATCH_SIZE);
+        GLState.get().matrixMode(gl, GL10.GL_TEXTURE);
+        GLState.get().pushMatrix(gl);
+        GLState.get().translate(gl, 0.0f, 0.50f);
 
-        drawTriangles(gl, mTopVertexBuffer, mTopTexCoordBuffer, 4);
+        drawTriangles(gl, mTopVertexBuffer, sTopTexCoordBuffer, 4);
 
-        gl.glMatrixMode(GL10.GL_TEXTURE);
-        gl.glPopMatrix();
-        gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glPopMatrix();
+        GLState.get().matrixMode(gl, GL10.GL_TEXTURE);
+        GLState.get().popMatrix(gl);
+        GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
+        GLState.get().popMatrix(gl);
 
-        gl.glDisable(GL10.GL_BLEND);
+        GLState.get().setEnabled(gl, GL10.GL_BLEND, false);
     }
 }
@@ -38,54 +38,121 @@
 package org.mozilla.gecko.gfx;
 
 import org.mozilla.gecko.gfx.BufferedCairoImage;
+import org.mozilla.gecko.gfx.CairoImage;
 import org.mozilla.gecko.gfx.CairoUtils;
+import org.mozilla.gecko.gfx.ETC1Compressor;
+import org.mozilla.gecko.gfx.FloatPoint;
+import org.mozilla.gecko.gfx.FloatRect;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.LayerClient;
+import org.mozilla.gecko.gfx.LayerController;
 import org.mozilla.gecko.gfx.SingleTileLayer;
+import org.mozilla.gecko.gfx.Snapshot;
+import org.mozilla.gecko.gfx.TileLayer;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Environment;
 import android.util.Log;
 import java.io.File;
-import java.nio.ByteBuffer;
+import java.io.IOException;
 
 /**
  * A stand-in for Gecko that renders cached content of the previous page. We use this until Gecko
  * is up, then we hand off control to it.
+ *
+ * The cached content is preferably a raw snapshot, which is mapped straight into memory and
+ * uploaded without being decoded; if there isn't one, we fall back to decoding a PNG.
  */
 public class PlaceholderLayerClient extends LayerClient {
+    private static final String LOG_NAME = "PlaceholderLayerClient";
+
+    public static final String SNAPSHOT_FILE_NAME = "lastScreen.snapshot";
+    public static final String PNG_FILE_NAME = "lastScreen.png";
+
     private Context mContext;
     private IntSize mPageSize;
-    private int mWidth, mHeight, mFormat;
-    private ByteBuffer mBuffer;
+    private CairoImage mImage;
+    private FloatRect mVisibleRect;     /* Where the image goes, or null if it isn't known. */
 
-    private PlaceholderLayerClient(Context context, Bitmap bitmap) {
+    private PlaceholderLayerClient(Context context, CairoImage image, IntSize pageSize,
+                                   FloatRect visibleRect) {
         mContext = context;
-        mPageSize = new IntSize(995, 1250); /* TODO */
-
-        mWidth = bitmap.getWidth();
-        mHeight = bitmap.getHeight();
-        mFormat = CairoUtils.bitmapConfigToCairoFormat(bitmap.getConfig());
-        mBuffer = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
-        bitmap.copyPixelsToBuffer(mBuffer.asIntBuffer());
+        mImage = image;
+        mPageSize = pageSize;
+        mVisibleRect = visibleRect;
     }
 
     public static PlaceholderLayerClient createInstance(Context context) {
-        File path = new File(Environment.getExternalStorageDirectory(), "lastScreen.png");
+        File directory = Environment.getExternalStorageDirectory();
+
+        File snapshotPath = new File(directory, SNAPSHOT_FILE_NAME);
+        if (snapshotPath.exists()) {
+            try {
+                Snapshot snapshot = Snapshot.read(snapshotPath);
+                return new PlaceholderLayerClient(context, snapshot.getImage(),
+                                                  snapshot.getPageSize(),
+                                                  snapshot.getVisibleRect());
+            } catch (IOException e) {
+                Log.e(LOG_NAME, "Couldn't read the snapshot; falling back to the PNG", e);
+            }
+        }
+
+        File path = new File(directory, PNG_FILE_NAME);
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
         Bitmap bitmap = BitmapFactory.decodeFile("" + path, options);
         if (bitmap == null)
             return null;
 
-        return new PlaceholderLayerClient(context, bitmap);
+        CairoImage image = new BufferedCairoImage(bitmap);
+        bitmap.recycle();
+
+        /* Screenshots are almost always opaque, so they can usually be uploaded as RGB565. */
+        int format = CairoUtils.chooseUploadFormat(image);
+        if (format != image.getFormat()) {
+            CairoImage convertedImage = CairoUtils.convertImage(image, format, true);
+            image.release();
+            image = convertedImage;
+        }
+
+        return new PlaceholderLayerClient(context, image, new IntSize(995, 1250) /* TODO */,
+                                          null);
     }
 
     public void init() {
-        SingleTileLayer tileLayer = new SingleTileLayer();
-        getLayerController().setRoot(tileLayer);
-        tileLayer.paintImage(new BufferedCairoImage(mBuffer, mWidth, mHeight, mFormat));
+        final SingleTileLayer tileLayer = new SingleTileLayer();
+        final LayerController controller = getLayerController();
+
+        /* Put the image where it was on the page, and scroll there. */
+        if (mVisibleRect != null) {
+            tileLayer.origin = new FloatPoint(mVisibleRect.x, mVisibleRect.y);
+            controller.scrollTo(mVisibleRect.x, mVisibleRect.y);
+        }
+
+        controller.setRoot(tileLayer);
+        tileLayer.paintImage(mImage);
+
+        /*
+         * The snapshot doesn't change until Gecko takes over, so swap it for an ETC1-compressed
+         * copy if the GL can draw one. That frees most of the texture memory it takes up. Images
+         * with transparent pixels, such as padded snapshots, are left uncompressed, since ETC1
+         * would draw the transparent parts black.
+         */
+        if (TileLayer.isETC1Supported()) {
+            ETC1Compressor.compressInBackground(mImage, new ETC1Compressor.Listener() {
+                public void onCompressed(CairoImage image) {
+                    if (controller.getRoot() == tileLayer) {
+                        tileLayer.paintImage(image);
+                        controller.notifyViewOfGeometryChange();
+                    }
+                    image.release();
+                }
+            });
+        }
+
+        mImage.release();
+        mImage = null;
     }
 
     @Override
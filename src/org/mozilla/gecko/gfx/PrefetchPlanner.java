@@ -0,0 +1,158 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.FloatPoint;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.IntPoint;
+import org.mozilla.gecko.gfx.IntRect;
+import org.mozilla.gecko.gfx.IntSize;
+import org.mozilla.gecko.gfx.LayerController;
+import org.mozilla.gecko.gfx.TiledLayer;
+import org.mozilla.gecko.ui.PanZoomController;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Decides which tiles should be rendered ahead of the user. While the user pans, we extrapolate
+ * the current velocity a few frames ahead; during a fling, we compute where friction will bring
+ * the viewport to rest. The render rect is then swept along that path, and the missing tiles are
+ * ordered so that the visible ones come first, followed by the rest in the order the viewport will
+ * reach them.
+ */
+public class PrefetchPlanner {
+    private LayerController mController;
+    private PanZoomController mPanZoomController;
+
+    // How many touch events ahead to extrapolate the velocity while the user is panning. Touch
+    // events arrive at roughly the frame rate.
+    private static final float PAN_LOOKAHEAD_EVENTS = 15.0f;
+    // The farthest we prefetch along each axis, as a multiple of the visible rect's size. This
+    // keeps a hard fling on a long page from queueing a huge amount of work.
+    private static final float MAX_LOOKAHEAD_SCREENS = 2.0f;
+
+    public PrefetchPlanner(LayerController controller, PanZoomController panZoomController) {
+        mController = controller;
+        mPanZoomController = panZoomController;
+    }
+
+    /** Returns how far the visible rect is expected to move, clamped to the lookahead limit. */
+    public FloatPoint getPredictedDisplacement() {
+        FloatPoint displacement;
+        if (mPanZoomController.isFlinging())
+            displacement = mPanZoomController.getFlingDisplacement();
+        else
+            displacement = mPanZoomController.getVelocity().scale(PAN_LOOKAHEAD_EVENTS);
+
+        FloatRect visibleRect = mController.getVisibleRect();
+        float maxX = visibleRect.width * MAX_LOOKAHEAD_SCREENS;
+        float maxY = visibleRect.height * MAX_LOOKAHEAD_SCREENS;
+        return new FloatPoint(clamp(-maxX, displacement.x, maxX),
+                              clamp(-maxY, displacement.y, maxY));
+    }
+
+    /**
+     * Returns the region swept by the render rect between its current position and its predicted
+     * position, clipped to the page.
+     */
+    public FloatRect getPrefetchRect() {
+        FloatRect renderRect = mController.getRenderRect();
+        FloatPoint displacement = getPredictedDisplacement();
+        FloatRect predictedRect = new FloatRect(renderRect.x + displacement.x,
+                                                renderRect.y + displacement.y,
+                                                renderRect.width, renderRect.height);
+
+        IntSize pageSize = mController.getPageSize();
+        FloatRect pageRect = new FloatRect(0.0f, 0.0f, pageSize.width, pageSize.height);
+        return renderRect.union(predictedRect).intersect(pageRect);
+    }
+
+    /**
+     * Returns the tiles of the given layer that should be rendered, most urgent first. Visible
+     * tiles come first. The tiles ahead of the viewport follow, in the order it will reach them,
+     * and then the ones behind it; ties are broken by distance from the center of the viewport.
+     */
+    public ArrayList<IntPoint> getMissingTiles(TiledLayer layer) {
+        final FloatRect visibleRect = mController.getVisibleRect();
+        final FloatPoint center = visibleRect.getCenter();
+        final FloatPoint displacement = getPredictedDisplacement();
+
+        ArrayList<IntPoint> tiles = layer.getMissingTiles(getPrefetchRect());
+        Collections.sort(tiles, new Comparator<IntPoint>() {
+            public int compare(IntPoint a, IntPoint b) {
+                boolean aVisible = isVisible(a), bVisible = isVisible(b);
+                if (aVisible != bVisible)
+                    return aVisible ? -1 : 1;
+
+                float aProjection = getProjection(a), bProjection = getProjection(b);
+                boolean aAhead = aProjection > 0.0f, bAhead = bProjection > 0.0f;
+                if (aAhead != bAhead)
+                    return aAhead ? -1 : 1;
+                if (aAhead && aProjection != bProjection)
+                    return Float.compare(aProjection, bProjection);
+                return Float.compare(getDistance(a), getDistance(b));
+            }
+
+            private boolean isVisible(IntPoint tile) {
+                FloatRect tileRect = new FloatRect(TiledLayer.getTileRect(tile.x, tile.y));
+                FloatRect intersection = tileRect.intersect(visibleRect);
+                return intersection.width > 0.0f && intersection.height > 0.0f;
+            }
+
+            /* How far along the direction of travel the tile's center lies. */
+            private float getProjection(IntPoint tile) {
+                IntPoint tileCenter = TiledLayer.getTileRect(tile.x, tile.y).getCenter();
+                return (tileCenter.x - center.x) * displacement.x +
+                       (tileCenter.y - center.y) * displacement.y;
+            }
+
+            private float getDistance(IntPoint tile) {
+                IntPoint tileCenter = TiledLayer.getTileRect(tile.x, tile.y).getCenter();
+                float dx = tileCenter.x - center.x, dy = tileCenter.y - center.y;
+                return dx * dx + dy * dy;
+            }
+        });
+        return tiles;
+    }
+
+    private float clamp(float min, float value, float max) {
+        return (value < min) ? min : (value > max) ? max : value;
+    }
+}
@@ -0,0 +1,104 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+/**
+ * Decides when the layer client renders, so that viewport changes that arrive while a render is
+ * in flight aren't lost.
+ *
+ * Requests are coalesced: a render reads the viewport when it starts, so any number of requests
+ * made during a render collapse into a single follow-up render, started as soon as the current
+ * one finishes. Every request bumps a generation counter. The in-flight render is cancelled as
+ * soon as it's superseded, since the follow-up will recompute what needs painting, and its
+ * completion is ignored unless it carries the generation it was started with.
+ *
+ * All methods must be called on the UI thread.
+ */
+public abstract class RenderScheduler {
+    private int mGeneration;            /* Bumped on every request. */
+    private int mRenderGeneration;      /* The generation of the in-flight render. */
+    private boolean mRendering;
+    private boolean mRenderPending;
+
+    public RenderScheduler() {
+        mGeneration = 0;
+        mRendering = mRenderPending = false;
+    }
+
+    /** Starts a render of the given generation. Subclasses call renderFinished() once it's done. */
+    protected abstract void onStartRender(int generation);
+
+    /** Asks the in-flight render to stop early. It must still call renderFinished(). */
+    protected abstract void onCancelRender();
+
+    /** Requests a render of the current viewport. */
+    public void scheduleRender() {
+        mGeneration++;
+        if (!mRendering) {
+            startRender();
+            return;
+        }
+
+        if (!mRenderPending) {
+            mRenderPending = true;
+            onCancelRender();
+        }
+    }
+
+    /**
+     * Called when the render of the given generation completes or is cancelled. Starts the
+     * follow-up render, if one was requested in the meantime.
+     */
+    public void renderFinished(int generation) {
+        if (!mRendering || generation != mRenderGeneration)
+            return;
+
+        mRendering = false;
+        if (mRenderPending) {
+            mRenderPending = false;
+            startRender();
+        }
+    }
+
+    private void startRender() {
+        mRendering = true;
+        mRenderGeneration = mGeneration;
+        onStartRender(mRenderGeneration);
+    }
+}
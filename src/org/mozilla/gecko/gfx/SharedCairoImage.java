@@ -0,0 +1,117 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.CairoUtils;
+import android.graphics.Bitmap;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Cairo image whose pixels live in a single bitmap. Whoever produces the image draws into the
+ * bitmap in place with a Canvas, and the texture upload hands the same bitmap to GL, so the
+ * pixels aren't copied on their way to the texture.
+ *
+ * lockBitmap() and unlockBitmap() guard the pixels: the producer holds the lock while it draws,
+ * and the upload holds it while it reads, so a texture never receives a half-drawn image.
+ * Consumers that need the raw bytes, such as the ETC1 compressor, can still call lockBuffer(),
+ * which copies the pixels out of the bitmap; the texture upload never does.
+ */
+public class SharedCairoImage extends CairoImage {
+    private final Bitmap mBitmap;
+    private final int mFormat;
+    private final ReentrantLock mLock;
+    private ByteBuffer mBuffer;     /* Only allocated if lockBuffer() is called. */
+
+    /** Creates an image backed by a new bitmap. The format must be ARGB32, RGB565, or A8. */
+    public SharedCairoImage(int width, int height, int format) {
+        mBitmap = Bitmap.createBitmap(width, height, CairoUtils.cairoFormatToBitmapConfig(format));
+        mFormat = format;
+        mLock = new ReentrantLock();
+    }
+
+    /**
+     * Returns the bitmap, for making a Canvas that draws into it. Once the image has been handed
+     * to anyone else, drawing must happen between lockBitmap() and unlockBitmap().
+     */
+    public Bitmap getBitmap() { return mBitmap; }
+
+    /** Locks the pixels and returns the bitmap. Blocks while another thread holds the lock. */
+    @Override
+    public Bitmap lockBitmap() {
+        mLock.lock();
+        return mBitmap;
+    }
+
+    @Override
+    public void unlockBitmap() { mLock.unlock(); }
+
+    /**
+     * Locks the pixels and returns a copy of them, positioned at the start of the image. Every
+     * call must be paired with a call to unlockBuffer().
+     */
+    @Override
+    public ByteBuffer lockBuffer() {
+        mLock.lock();
+        if (mBuffer == null)
+            mBuffer = ByteBuffer.allocateDirect(mBitmap.getRowBytes() * mBitmap.getHeight());
+        mBuffer.clear();
+        mBitmap.copyPixelsToBuffer(mBuffer);
+        mBuffer.rewind();
+        return mBuffer;
+    }
+
+    @Override
+    public void unlockBuffer() { mLock.unlock(); }
+
+    /* Frees the pixels right away instead of waiting for the garbage collector. */
+    @Override
+    protected void onDestroy() {
+        mBitmap.recycle();
+        mBuffer = null;
+    }
+
+    @Override
+    public int getWidth() { return mBitmap.getWidth(); }
+    @Override
+    public int getHeight() { return mBitmap.getHeight(); }
+    @Override
+    public int getFormat() { return mFormat; }
+}
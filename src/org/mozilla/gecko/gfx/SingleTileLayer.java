@@ -39,21 +39,21 @@ package org.mozilla.gecko.gfx;
 
 import org.mozilla.gecko.gfx.CairoImage;
 import org.mozilla.gecko.gfx.CairoUtils;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.GLState;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.LayerController;
 import org.mozilla.gecko.gfx.TileLayer;
+import org.mozilla.gecko.gfx.VertexBuffer;
 import android.util.Log;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
  * Encapsulates the logic needed to draw a single textured tile.
  */
 public class SingleTileLayer extends TileLayer {
-    private FloatBuffer mTexCoordBuffer, mVertexBuffer;
-
     private static final float[] VERTICES = {
         0.0f, 0.0f, 0.0f,
         1.0f, 0.0f, 0.0f,
@@ -68,13 +68,23 @@ public class SingleTileLayer extends TileLayer {
         1.0f, 1.0f
     };
 
+    /* Every single tile is drawn as the same unit quad, scaled by the modelview matrix. */
+    private static final VertexBuffer sVertexBuffer = new VertexBuffer(VERTICES);
+    private static final VertexBuffer sTexCoordBuffer = new VertexBuffer(TEX_COORDS);
+
     public SingleTileLayer() { this(false); }
 
     public SingleTileLayer(boolean repeat) {
         super(repeat);
+    }
 
-        mVertexBuffer = createBuffer(VERTICES);
-        mTexCoordBuffer = createBuffer(TEX_COORDS);
+    /* A repeating tile fills whatever it's drawn in, so it has no bounds. */
+    @Override
+    public FloatRect getBounds() {
+        IntSize size = getContentSize();
+        if (size == null || repeats())
+            return null;
+        return new FloatRect(origin.x, origin.y, size.width, size.height);
     }
 
     @Override
@@ -82,25 +92,24 @@ public class SingleTileLayer extends TileLayer {
         IntSize size = getSize();
 
         if (repeats()) {
-            gl.glMatrixMode(GL10.GL_TEXTURE);
-            gl.glPushMatrix();
-            gl.glScalef(LayerController.TILE_WIDTH / size.width,
-                        LayerController.TILE_HEIGHT / size.height,
-                        1.0f);
+            GLState.get().matrixMode(gl, GL10.GL_TEXTURE);
+            GLState.get().pushMatrix(gl);
+            GLState.get().scale(gl, LayerController.TILE_WIDTH / size.width,
+                                LayerController.TILE_HEIGHT / size.height);
 
-            gl.glMatrixMode(GL10.GL_MODELVIEW);
-            gl.glScalef(LayerController.TILE_WIDTH, LayerController.TILE_HEIGHT, 1.0f);
+            GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
+            GLState.get().scale(gl, LayerController.TILE_WIDTH, LayerController.TILE_HEIGHT);
         } else {
-            gl.glScalef(size.width, size.height, 1.0f);
+            GLState.get().scale(gl, size.width, size.height);
         }
 
-        gl.glBindTexture(GL10.GL_TEXTURE_2D, getTextureID());
-        drawTriangles(gl, mVertexBuffer, mTexCoordBuffer, 4);
+        GLState.get().bindTexture(gl, getTextureID());
+        drawTriangles(gl, sVertexBuffer, sTexCoordBuffer, 4);
 
         if (repeats()) {
-            gl.glMatrixMode(GL10.GL_TEXTURE);
-            gl.glPopMatrix();
-            gl.glMatrixMode(GL10.GL_MODELVIEW);
+            GLState.get().matrixMode(gl, GL10.GL_TEXTURE);
+            GLState.get().popMatrix(gl);
+            GLState.get().matrixMode(gl, GL10.GL_MODELVIEW);
         }
     }
 }
@@ -0,0 +1,146 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.BufferedCairoImage;
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.CairoUtils;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.IntSize;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A picture of the screen together with the page geometry it was taken at, stored in a raw format
+ * that can be put on the screen at startup without decoding anything.
+ *
+ * The file starts with a fixed-size header, in big-endian order:
+ *
+ *   0  magic number ('FNSS')
+ *   4  format version
+ *   8  image width and height, in pixels
+ *  16  Cairo format of the image
+ *  20  page width and height
+ *  28  visible rect: x, y, width, and height, as floats
+ *
+ * The rest of the header is padding. The pixel rows follow, top to bottom, in exactly the layout
+ * glTexImage2D expects for the Cairo format, so the file is mapped into memory and the mapped
+ * buffer is uploaded as is.
+ */
+public class Snapshot {
+    public static final int MAGIC = 0x464e5353;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+
+    private final CairoImage mImage;
+    private final IntSize mPageSize;
+    private final FloatRect mVisibleRect;
+
+    public Snapshot(CairoImage image, IntSize pageSize, FloatRect visibleRect) {
+        mImage = image;
+        mPageSize = pageSize;
+        mVisibleRect = visibleRect;
+    }
+
+    public CairoImage getImage() { return mImage; }
+    public IntSize getPageSize() { return mPageSize; }
+    public FloatRect getVisibleRect() { return mVisibleRect; }
+
+    /** Returns a header describing an image of the given size and Cairo format. */
+    public static ByteBuffer createHeader(int width, int height, int format, IntSize pageSize,
+                                          FloatRect visibleRect) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt(width).putInt(height).putInt(format);
+        header.putInt(pageSize.width).putInt(pageSize.height);
+        header.putFloat(visibleRect.x).putFloat(visibleRect.y);
+        header.putFloat(visibleRect.width).putFloat(visibleRect.height);
+        header.clear();
+        return header;
+    }
+
+    /** Maps the given snapshot file into memory. The image reads its pixels from the mapping. */
+    public static Snapshot read(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        MappedByteBuffer mapping;
+        try {
+            FileChannel channel = stream.getChannel();
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            stream.close();     /* The mapping stays valid after the file is closed. */
+        }
+
+        mapping.order(ByteOrder.BIG_ENDIAN);
+        if (mapping.capacity() < HEADER_SIZE || mapping.getInt(0) != MAGIC)
+            throw new IOException(file + " isn't a snapshot");
+        if (mapping.getInt(4) != VERSION)
+            throw new IOException("Unsupported snapshot version " + mapping.getInt(4));
+
+        int width = mapping.getInt(8), height = mapping.getInt(12), format = mapping.getInt(16);
+        IntSize pageSize = new IntSize(mapping.getInt(20), mapping.getInt(24));
+        FloatRect visibleRect = new FloatRect(mapping.getFloat(28), mapping.getFloat(32),
+                                              mapping.getFloat(36), mapping.getFloat(40));
+
+        switch (format) {
+        case CairoImage.FORMAT_ARGB32:
+        case CairoImage.FORMAT_RGB24:
+        case CairoImage.FORMAT_RGB16_565:
+            break;
+        default:
+            throw new IOException("Unsupported snapshot format " + format);
+        }
+
+        long byteCount = (long)width * height * CairoUtils.bitsPerPixelForCairoFormat(format) / 8;
+        if (width <= 0 || height <= 0 || mapping.capacity() - HEADER_SIZE < byteCount) {
+            throw new IOException("Corrupt snapshot: " + width + "x" + height + ", format " +
+                                  format + ", " + mapping.capacity() + " bytes");
+        }
+
+        mapping.position(HEADER_SIZE);
+        ByteBuffer pixels = mapping.slice();
+        return new Snapshot(new BufferedCairoImage(pixels, width, height, format), pageSize,
+                            visibleRect);
+    }
+}
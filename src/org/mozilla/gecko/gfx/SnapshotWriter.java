@@ -0,0 +1,169 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.IntSize;
+import org.mozilla.gecko.gfx.Snapshot;
+import org.mozilla.gecko.gfx.TileLayer;
+import android.os.Process;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Saves snapshots of the screen for the placeholder layer client to show at the next startup.
+ *
+ * The renderer reads the pixels back on the GL thread and hands them over; everything else
+ * happens on a background thread of the writer's own. The snapshot is written to a temporary file
+ * and renamed over the old one once it's complete, so a snapshot that's cut short by the process
+ * being killed never replaces a good one. Snapshots are written one at a time, in order.
+ */
+public class SnapshotWriter {
+    private static final String LOG_NAME = "SnapshotWriter";
+
+    private final File mFile;
+    private final ExecutorService mExecutor;
+
+    public SnapshotWriter(File file) {
+        mFile = file;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "SnapshotWriter");
+            }
+        });
+    }
+
+    /**
+     * Queues a snapshot to be written. The pixels are RGBA rows as glReadPixels returns them,
+     * bottom to top, and must not be touched afterward. The visible rect gives where the pixels
+     * go on the page, in the same units as the page size.
+     */
+    public void write(final ByteBuffer pixels, final int width, final int height,
+                      final IntSize pageSize, final FloatRect visibleRect) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    long byteCount = writeFile(pixels, width, height, pageSize, visibleRect);
+                    Log.i(LOG_NAME, "Saved a " + width + "x" + height + " snapshot in " +
+                          (System.currentTimeMillis() - startTime) + " ms, " + byteCount +
+                          " bytes");
+                } catch (IOException e) {
+                    Log.e(LOG_NAME, "Couldn't save the snapshot", e);
+                }
+            }
+        });
+    }
+
+    /*
+     * Writes the snapshot and returns the size of the file. Unless the driver takes NPOT
+     * textures, the image is padded out to power-of-two dimensions, since it's uploaded as a
+     * single texture. It's also flipped so that the rows run top to bottom.
+     */
+    private long writeFile(ByteBuffer pixels, int width, int height, IntSize pageSize,
+                           FloatRect visibleRect) throws IOException {
+        int textureWidth = width, textureHeight = height;
+        if (!TileLayer.isNPOTSupported()) {
+            textureWidth = nextPowerOfTwo(width);
+            textureHeight = nextPowerOfTwo(height);
+        }
+        File tempFile = new File(mFile.getPath() + ".tmp");
+
+        FileOutputStream stream = new FileOutputStream(tempFile);
+        long byteCount;
+        try {
+            FileChannel channel = stream.getChannel();
+            writeFully(channel, Snapshot.createHeader(textureWidth, textureHeight,
+                                                      CairoImage.FORMAT_ARGB32, pageSize,
+                                                      visibleRect));
+
+            int rowByteCount = width * 4, textureRowByteCount = textureWidth * 4;
+            ByteBuffer row = ByteBuffer.allocateDirect(textureRowByteCount);
+            for (int y = 0; y < textureHeight; y++) {
+                row.clear();
+                if (y < height) {
+                    int start = (height - 1 - y) * rowByteCount;
+                    pixels.limit(start + rowByteCount).position(start);
+                    row.put(pixels);
+                }
+                while (row.hasRemaining())
+                    row.put((byte)0);
+
+                row.flip();
+                writeFully(channel, row);
+            }
+
+            stream.getFD().sync();
+            byteCount = channel.size();
+        } finally {
+            stream.close();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Couldn't rename " + tempFile + " to " + mFile);
+        }
+        return byteCount;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value)
+            result <<= 1;
+        return result;
+    }
+}
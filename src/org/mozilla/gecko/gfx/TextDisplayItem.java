@@ -0,0 +1,104 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.DisplayItem;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.TextRunCache;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import java.util.IdentityHashMap;
+
+/**
+ * A display item that draws a line of text. If it's given a text run cache, the line is blitted
+ * from there instead of being rasterized every time it's drawn.
+ *
+ * Items are drawn on several threads at once, and a Paint isn't safe to use from more than one
+ * thread, so each thread draws with its own copy of the paint the item was given. Copies are
+ * shared between the items on a thread that were given the same paint.
+ */
+public class TextDisplayItem extends DisplayItem {
+    private static final ThreadLocal<IdentityHashMap<Paint,Paint>> sThreadPaints =
+        new ThreadLocal<IdentityHashMap<Paint,Paint>>() {
+            @Override
+            protected IdentityHashMap<Paint,Paint> initialValue() {
+                return new IdentityHashMap<Paint,Paint>();
+            }
+        };
+
+    private final String mText;
+    private final float mX, mY;
+    private final Paint mPaint;
+    private final TextRunCache mTextRunCache;
+
+    /**
+     * Creates an item that draws the given text with its baseline starting at the given point.
+     * The paint must not be changed afterward, and it's only read on the calling thread. The
+     * text run cache may be null.
+     */
+    public TextDisplayItem(String text, float x, float y, Paint paint, TextRunCache textRunCache) {
+        super(new FloatRect(x, y + paint.ascent(), paint.measureText(text),
+                            paint.descent() - paint.ascent()));
+        mText = text; mX = x; mY = y; mPaint = paint;
+        mTextRunCache = textRunCache;
+    }
+
+    public String getText() { return mText; }
+    public Paint getPaint() { return mPaint; }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Paint paint = getThreadPaint();
+        if (mTextRunCache != null)
+            mTextRunCache.drawText(canvas, mText, mX, mY, paint);
+        else
+            canvas.drawText(mText, mX, mY, paint);
+    }
+
+    /* Returns this thread's copy of our paint, making it if need be. */
+    private Paint getThreadPaint() {
+        IdentityHashMap<Paint,Paint> threadPaints = sThreadPaints.get();
+        Paint paint = threadPaints.get(mPaint);
+        if (paint == null) {
+            paint = new Paint(mPaint);
+            threadPaints.put(mPaint, paint);
+        }
+        return paint;
+    }
+}
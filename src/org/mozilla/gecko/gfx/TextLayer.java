@@ -37,9 +37,9 @@
 
 package org.mozilla.gecko.gfx;
 
-import org.mozilla.gecko.gfx.BufferedCairoImage;
 import org.mozilla.gecko.gfx.CairoImage;
 import org.mozilla.gecko.gfx.IntSize;
+import org.mozilla.gecko.gfx.SharedCairoImage;
 import org.mozilla.gecko.gfx.SingleTileLayer;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -47,25 +47,35 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.util.Log;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 
 /**
  * Draws text on a layer. This is used for the frame rate meter.
+ *
+ * The text is drawn straight into the bitmap of a shared image, which the texture upload reads
+ * directly; the image's lock keeps the upload from seeing a half-drawn frame.
  */
 public class TextLayer extends SingleTileLayer {
-    private ByteBuffer mBuffer;
-    private BufferedCairoImage mImage;
-    private IntSize mSize;
+    private Canvas mCanvas;
+    private SharedCairoImage mImage;
+    private Paint mTextPaint, mBackgroundPaint;
     private String mText;
 
     public TextLayer(IntSize size) {
         super(false);
 
-        mBuffer = ByteBuffer.allocateDirect(size.width * size.height * 4);
-        mSize = size;
-        mImage = new BufferedCairoImage(mBuffer, size.width, size.height,
-                                        CairoImage.FORMAT_ARGB32);
+        mImage = new SharedCairoImage(size.width, size.height, CairoImage.FORMAT_ARGB32);
+        mCanvas = new Canvas(mImage.getBitmap());
+
+        mTextPaint = new Paint();
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setFakeBoldText(true);
+        mTextPaint.setTextSize(18.0f);
+        mTextPaint.setTypeface(Typeface.DEFAULT_BOLD);
+
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setColor(Color.argb(127, 0, 0, 0));
+
         mText = "";
     }
 
@@ -76,24 +86,16 @@ public class TextLayer extends SingleTileLayer {
     }
 
     private void renderText() {
-        Bitmap bitmap = Bitmap.createBitmap(mSize.width, mSize.height, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-
-        Paint textPaint = new Paint();
-        textPaint.setAntiAlias(true);
-        textPaint.setColor(Color.WHITE);
-        textPaint.setFakeBoldText(true);
-        textPaint.setTextSize(18.0f);
-        textPaint.setTypeface(Typeface.DEFAULT_BOLD);
-        float width = textPaint.measureText(mText) + 18.0f;
-
-        Paint backgroundPaint = new Paint();
-        backgroundPaint.setColor(Color.argb(127, 0, 0, 0));
-        canvas.drawRect(0.0f, 0.0f, width, 18.0f + 6.0f, backgroundPaint);
-
-        canvas.drawText(mText, 6.0f, 18.0f, textPaint);
+        Bitmap bitmap = mImage.lockBitmap();
+        try {
+            bitmap.eraseColor(Color.TRANSPARENT);
 
-        bitmap.copyPixelsToBuffer(mBuffer.asIntBuffer());
+            float width = mTextPaint.measureText(mText) + 18.0f;
+            mCanvas.drawRect(0.0f, 0.0f, width, 18.0f + 6.0f, mBackgroundPaint);
+            mCanvas.drawText(mText, 6.0f, 18.0f, mTextPaint);
+        } finally {
+            mImage.unlockBitmap();
+        }
     }
 }
 
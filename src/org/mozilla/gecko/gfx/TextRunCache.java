@@ -0,0 +1,160 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps pre-rendered bitmaps of lines of text, so that drawing a line that has been drawn before
+ * is a single bitmap blit instead of shaping and rasterizing every glyph again. Runs are stored as
+ * alpha masks and blitted with the color of the paint they're drawn with, so paints used on scaled
+ * canvases should have bitmap filtering turned on.
+ *
+ * Runs are keyed by their text, text size, and paint flags, and evicted in least-recently-used
+ * order once the cache exceeds its byte budget. The cache is shared by the raster threads, so it's
+ * synchronized; runs are rendered outside the lock, so a miss on one thread doesn't hold up the
+ * others. Evicted bitmaps aren't recycled, since another thread may still be drawing them; the
+ * garbage collector takes care of them.
+ */
+public class TextRunCache {
+    private static final String LOG_NAME = "TextRunCache";
+
+    private static final int PADDING = 1;
+    /* Antialiased glyphs can bleed a pixel past the measured width of the text. */
+
+    private final int mByteBudget;
+    private int mByteCount;
+    private LinkedHashMap<Key,TextRun> mRuns;  /* In least-recently-used order. */
+
+    public TextRunCache(int byteBudget) {
+        mByteBudget = byteBudget;
+        mByteCount = 0;
+        mRuns = new LinkedHashMap<Key,TextRun>(16, 0.75f, true);
+    }
+
+    public synchronized int getByteCount() { return mByteCount; }
+
+    /** Draws the given text with its baseline starting at the given point. */
+    public void drawText(Canvas canvas, String text, float x, float y, Paint paint) {
+        Key key = new Key(text, paint.getTextSize(), paint.getFlags());
+        TextRun run = get(key);
+        if (run == null) {
+            run = new TextRun(text, paint);
+            put(key, run);
+        }
+
+        canvas.drawBitmap(run.bitmap, x + run.offsetX, y + run.offsetY, paint);
+    }
+
+    private synchronized TextRun get(Key key) {
+        return mRuns.get(key);
+    }
+
+    private synchronized void put(Key key, TextRun run) {
+        TextRun oldRun = mRuns.put(key, run);
+        if (oldRun != null)
+            mByteCount -= oldRun.getByteCount();
+        mByteCount += run.getByteCount();
+
+        /* Evict in LRU order until we're within budget. The newest run is never evicted. */
+        Iterator<TextRun> iterator = mRuns.values().iterator();
+        int evictedCount = 0;
+        while (mByteCount > mByteBudget && mRuns.size() > 1) {
+            mByteCount -= iterator.next().getByteCount();
+            iterator.remove();
+            evictedCount++;
+        }
+
+        if (evictedCount > 0)
+            Log.i(LOG_NAME, "Evicted " + evictedCount + " text runs, " + mByteCount +
+                  " bytes left");
+    }
+
+    private static class Key {
+        public final String text;
+        public final float textSize;
+        public final int flags;
+
+        public Key(String inText, float inTextSize, int inFlags) {
+            text = inText; textSize = inTextSize; flags = inFlags;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key otherKey = (Key)other;
+            return textSize == otherKey.textSize && flags == otherKey.flags &&
+                text.equals(otherKey.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return (text.hashCode() * 31 + Float.floatToIntBits(textSize)) * 31 + flags;
+        }
+    }
+
+    /* An alpha mask of a line of text, and where it goes relative to the start of the baseline. */
+    private static class TextRun {
+        public final Bitmap bitmap;
+        public final float offsetX, offsetY;
+
+        public TextRun(String text, Paint paint) {
+            int ascent = (int)Math.floor(paint.ascent());
+            int descent = (int)Math.ceil(paint.descent());
+            int width = (int)Math.ceil(paint.measureText(text)) + PADDING * 2;
+            int height = descent - ascent + PADDING * 2;
+
+            bitmap = Bitmap.createBitmap(Math.max(width, 1), Math.max(height, 1),
+                                         Bitmap.Config.ALPHA_8);
+            offsetX = -PADDING;
+            offsetY = ascent - PADDING;
+
+            Canvas canvas = new Canvas(bitmap);
+            canvas.drawText(text, -offsetX, -offsetY, paint);
+        }
+
+        public int getByteCount() { return bitmap.getRowBytes() * bitmap.getHeight(); }
+    }
+}
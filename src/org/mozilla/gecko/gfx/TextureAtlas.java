@@ -0,0 +1,138 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.GLState;
+import org.mozilla.gecko.gfx.IntRect;
+import javax.microedition.khronos.opengles.GL10;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A single RGBA texture shared by several small layers, so that drawing them doesn't require a
+ * texture of their own. Space is handed out with a shelf packer: regions are placed left to right
+ * on horizontal shelves, and a new shelf is opened below the last one when nothing fits.
+ *
+ * Regions are never freed. The atlas is meant for the handful of long-lived layers that the
+ * renderer itself owns. Layers that need GL_REPEAT can't live in an atlas, since wrapping would
+ * sample the neighboring regions.
+ */
+public class TextureAtlas {
+    private final int mWidth, mHeight;
+    private ArrayList<Shelf> mShelves;
+    private int mNextShelfY;
+    private int[] mTextureIDs;
+
+    private static final int PADDING = 1;
+    /* Empty texels between regions, so that linear filtering doesn't bleed across them. */
+
+    public TextureAtlas(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mShelves = new ArrayList<Shelf>();
+        mNextShelfY = 0;
+    }
+
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+
+    /** Reserves a region of the given size, or returns null if the atlas is full. */
+    public synchronized IntRect allocate(int width, int height) {
+        int paddedWidth = width + PADDING, paddedHeight = height + PADDING;
+
+        /* Use the shortest shelf that fits, to waste as little height as possible. */
+        Shelf bestShelf = null;
+        for (Shelf shelf : mShelves) {
+            if (shelf.height < paddedHeight || mWidth - shelf.usedWidth < paddedWidth)
+                continue;
+            if (bestShelf == null || shelf.height < bestShelf.height)
+                bestShelf = shelf;
+        }
+
+        if (bestShelf == null) {
+            if (paddedWidth > mWidth || mNextShelfY + paddedHeight > mHeight)
+                return null;
+            bestShelf = new Shelf(mNextShelfY, paddedHeight);
+            mShelves.add(bestShelf);
+            mNextShelfY += paddedHeight;
+        }
+
+        IntRect region = new IntRect(bestShelf.usedWidth, bestShelf.y, width, height);
+        bestShelf.usedWidth += paddedWidth;
+        return region;
+    }
+
+    /** Returns the given region in texture coordinates. */
+    public FloatRect getTexCoordRect(IntRect region) {
+        return new FloatRect((float)region.x / mWidth, (float)region.y / mHeight,
+                             (float)region.width / mWidth, (float)region.height / mHeight);
+    }
+
+    /** Returns the atlas texture. Valid only after the atlas has been bound once. */
+    public int getTextureID() { return mTextureIDs[0]; }
+
+    /** Binds the atlas texture, creating it first if necessary. Must be called on the GL thread. */
+    public void bind(GL10 gl) {
+        if (mTextureIDs != null) {
+            GLState.get().bindTexture(gl, mTextureIDs[0]);
+            return;
+        }
+
+        mTextureIDs = new int[1];
+        gl.glGenTextures(mTextureIDs.length, mTextureIDs, 0);
+        GLState.get().bindTexture(gl, mTextureIDs[0]);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+
+        /* Start out fully transparent, so that the padding between regions is empty. */
+        ByteBuffer emptyBuffer = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+        gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, mWidth, mHeight, 0, GL10.GL_RGBA,
+                        GL10.GL_UNSIGNED_BYTE, emptyBuffer);
+    }
+
+    private static class Shelf {
+        public final int y, height;
+        public int usedWidth;
+
+        public Shelf(int inY, int inHeight) { y = inY; height = inHeight; usedWidth = 0; }
+    }
+}
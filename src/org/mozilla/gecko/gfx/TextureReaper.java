@@ -37,15 +37,47 @@
 
 package org.mozilla.gecko.gfx;
 
+import org.mozilla.gecko.gfx.CairoUtils;
+import org.mozilla.gecko.gfx.GLState;
 import javax.microedition.khronos.opengles.GL10;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-/** Manages a list of dead tiles, so we don't leak resources. */
+/**
+ * Manages a list of dead tiles, so we don't leak resources.
+ *
+ * Layers hand their textures over when they're destroyed, which can happen on any thread, but
+ * textures can only be deleted on the GL thread. Dead textures therefore go into a thread-safe
+ * queue that the GL thread drains at the start of every frame.
+ *
+ * Textures whose size and format are known aren't deleted right away. They go into a pool
+ * instead, so that a new tile of the same size and format can take over an already-allocated
+ * texture and overwrite it with glTexSubImage2D, sparing the driver a reallocation. The pool is
+ * trimmed to a byte budget, oldest textures first; everything that doesn't fit is deleted the next
+ * time the GL thread reaps.
+ *
+ * Vertex buffer objects are reaped the same way, but never pooled.
+ */
 public class TextureReaper {
     private static TextureReaper sSharedInstance;
-    private ArrayList<Integer> mDeadTextureIDs;
+    private ConcurrentLinkedQueue<Integer> mDeadTextureIDs;
+    private ConcurrentLinkedQueue<Integer> mDeadBufferIDs;
+    private HashMap<PoolKey,LinkedList<Integer>> mPool;
+    private LinkedList<PoolKey> mPoolOrder;     /* The key of each pooled texture, oldest first. */
+    private int mPoolByteCount;
+    private int mContextGeneration;     /* Bumped whenever a new GL context is created. */
+
+    private static final int MAX_POOL_BYTE_COUNT = 4 * 1024 * 1024;
 
-    private TextureReaper() { mDeadTextureIDs = new ArrayList<Integer>(); }
+    private TextureReaper() {
+        mDeadTextureIDs = new ConcurrentLinkedQueue<Integer>();
+        mDeadBufferIDs = new ConcurrentLinkedQueue<Integer>();
+        mPool = new HashMap<PoolKey,LinkedList<Integer>>();
+        mPoolOrder = new LinkedList<PoolKey>();
+        mPoolByteCount = 0;
+    }
 
     public static TextureReaper get() {
         if (sSharedInstance == null)
@@ -53,19 +85,145 @@ public class TextureReaper {
         return sSharedInstance;
     }
 
-    public void add(int[] textureIDs) {
+    /**
+     * Returns the generation of the current GL context. Textures are tagged with the generation
+     * they were created in, so that names from a context that's gone are never reused.
+     */
+    public synchronized int getContextGeneration() { return mContextGeneration; }
+
+    /**
+     * Queues the given textures, created in the given context generation, for deletion. May be
+     * called on any thread.
+     */
+    public synchronized void add(int[] textureIDs, int generation) {
+        if (generation != mContextGeneration)
+            return;     /* They went away with their context. */
         for (int textureID : textureIDs)
             mDeadTextureIDs.add(textureID);
     }
 
-    public void reap(GL10 gl) {
-        int[] deadTextureIDs = new int[mDeadTextureIDs.size()];
-        for (int i = 0; i < deadTextureIDs.length; i++)
-            deadTextureIDs[i] = mDeadTextureIDs.get(i);
+    /**
+     * Adds textures of the given size and Cairo format, created in the given context generation,
+     * to the pool, so that they can be handed out again by obtain(). Textures from an older
+     * context are dropped instead. May be called on any thread.
+     */
+    public synchronized void add(int[] textureIDs, int width, int height, int format,
+                                 int generation) {
+        if (generation != mContextGeneration)
+            return;
+
+        PoolKey key = new PoolKey(width, height, format);
+        LinkedList<Integer> textureList = mPool.get(key);
+        if (textureList == null) {
+            textureList = new LinkedList<Integer>();
+            mPool.put(key, textureList);
+        }
+
+        for (int textureID : textureIDs) {
+            textureList.addLast(textureID);
+            mPoolOrder.addLast(key);
+            mPoolByteCount += key.getByteCount();
+        }
+
+        trim();
+    }
+
+    /**
+     * Returns a pooled texture of the given size and Cairo format, or 0 if there isn't one. Pooled
+     * textures always belong to the current context. The caller owns the texture afterward. Must
+     * be called on the GL thread.
+     */
+    public synchronized int obtain(int width, int height, int format) {
+        PoolKey key = new PoolKey(width, height, format);
+        LinkedList<Integer> textureList = mPool.get(key);
+        if (textureList == null || textureList.isEmpty())
+            return 0;
+
+        /* Take the newest texture; the oldest ones are the first to be trimmed. */
+        mPoolOrder.removeLastOccurrence(key);
+        mPoolByteCount -= key.getByteCount();
+        return textureList.removeLast();
+    }
+
+    /**
+     * The renderer calls this when a new surface is created. Pooled and dead textures and buffers
+     * belonged to the old context and went away with it, so they're forgotten rather than
+     * deleted; deleting them now could delete objects of the new context that reuse the names.
+     */
+    public synchronized void surfaceCreated() {
+        mContextGeneration++;
+        mPool.clear();
+        mPoolOrder.clear();
+        mPoolByteCount = 0;
         mDeadTextureIDs.clear();
+        mDeadBufferIDs.clear();
+    }
 
-        gl.glDeleteTextures(deadTextureIDs.length, deadTextureIDs, 0);
+    /* Moves the oldest pooled textures to the dead list until the pool is within budget. */
+    private void trim() {
+        while (mPoolByteCount > MAX_POOL_BYTE_COUNT) {
+            PoolKey key = mPoolOrder.removeFirst();
+            mDeadTextureIDs.add(mPool.get(key).removeFirst());
+            mPoolByteCount -= key.getByteCount();
+        }
     }
-}
 
+    /** Queues the given vertex buffer object for deletion. Can be called on any thread. */
+    public void addBuffer(int bufferID) {
+        mDeadBufferIDs.add(bufferID);
+    }
+
+    /** Deletes every texture and buffer queued so far. Must be called on the GL thread. */
+    public void reap(GL10 gl) {
+        int[] deadTextureIDs = drain(mDeadTextureIDs);
+        if (deadTextureIDs != null) {
+            gl.glDeleteTextures(deadTextureIDs.length, deadTextureIDs, 0);
+            GLState.get().texturesDeleted(deadTextureIDs);
+        }
+
+        int[] deadBufferIDs = drain(mDeadBufferIDs);
+        if (deadBufferIDs != null) {
+            GLState.get().deleteBuffers(gl, deadBufferIDs);
+        }
+    }
+
+    /* Empties the given queue into an array, or returns null if it's empty. */
+    private static int[] drain(ConcurrentLinkedQueue<Integer> queue) {
+        if (queue.isEmpty())
+            return null;
+
+        ArrayList<Integer> idList = new ArrayList<Integer>();
+        Integer id;
+        while ((id = queue.poll()) != null)
+            idList.add(id);
 
+        int[] ids = new int[idList.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = idList.get(i);
+        return ids;
+    }
+
+    private static class PoolKey {
+        public final int width, height, format;
+
+        public PoolKey(int inWidth, int inHeight, int inFormat) {
+            width = inWidth; height = inHeight; format = inFormat;
+        }
+
+        public int getByteCount() {
+            return width * height * CairoUtils.bitsPerPixelForCairoFormat(format) / 8;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PoolKey))
+                return false;
+            PoolKey otherKey = (PoolKey)other;
+            return width == otherKey.width && height == otherKey.height &&
+                format == otherKey.format;
+        }
+
+        @Override
+        public int hashCode() { return (width * 31 + height) * 31 + format; }
+    }
+}
@@ -0,0 +1,206 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.CairoUtils;
+import org.mozilla.gecko.gfx.SingleTileLayer;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps rasterized tiles around so that scrolling back over a region of the page costs only a
+ * texture bind instead of a repaint. Tiles are keyed by zoom bucket and grid position and evicted
+ * in least-recently-used order once the cache exceeds its byte budget. The textures of evicted
+ * tiles are handed to the texture reaper, so they're deleted on the GL thread.
+ *
+ * Optionally, the cache also holds on to the CPU-side pixel buffer of each tile. Those count
+ * against the byte budget as well, and the cache retains each image until its tile is evicted.
+ */
+public class TileCache {
+    private static final String LOG_NAME = "TileCache";
+
+    private static final int ZOOM_BUCKETS_PER_OCTAVE = 4;
+
+    private final int mByteBudget;
+    private final boolean mRetainPixels;
+    private int mByteCount;
+    private LinkedHashMap<Key,Entry> mEntries;  /* In least-recently-used order. */
+
+    public TileCache(int byteBudget, boolean retainPixels) {
+        mByteBudget = byteBudget;
+        mRetainPixels = retainPixels;
+        mByteCount = 0;
+        mEntries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Quantizes a zoom factor so that tiles rendered at nearly the same resolution share a
+     * bucket. There are four buckets per doubling of the zoom factor.
+     */
+    public static int getZoomBucket(float zoomFactor) {
+        double octaves = Math.log(zoomFactor) / Math.log(2.0);
+        return (int)Math.round(octaves * ZOOM_BUCKETS_PER_OCTAVE);
+    }
+
+    public int getByteBudget() { return mByteBudget; }
+    public synchronized int getByteCount() { return mByteCount; }
+
+    /** Returns true if the cache holds the given tile. Doesn't count as a use of the tile. */
+    public synchronized boolean contains(int zoomBucket, int tileX, int tileY) {
+        return mEntries.containsKey(new Key(zoomBucket, tileX, tileY));
+    }
+
+    /** Returns the given tile, marking it as recently used, or null if it isn't cached. */
+    public synchronized SingleTileLayer get(int zoomBucket, int tileX, int tileY) {
+        Entry entry = mEntries.get(new Key(zoomBucket, tileX, tileY));
+        return (entry == null) ? null : entry.tile;
+    }
+
+    /** Returns the CPU-side pixels of the given tile, if the cache retains them. */
+    public synchronized CairoImage getImage(int zoomBucket, int tileX, int tileY) {
+        Entry entry = mEntries.get(new Key(zoomBucket, tileX, tileY));
+        return (entry == null) ? null : entry.image;
+    }
+
+    /** Returns all the cached tiles in the given zoom bucket. */
+    public synchronized ArrayList<SingleTileLayer> getTiles(int zoomBucket) {
+        ArrayList<SingleTileLayer> tiles = new ArrayList<SingleTileLayer>();
+        for (Map.Entry<Key,Entry> entry : mEntries.entrySet()) {
+            if (entry.getKey().zoomBucket == zoomBucket)
+                tiles.add(entry.getValue().tile);
+        }
+        return tiles;
+    }
+
+    /**
+     * Adds the given tile, which has just been painted with the given image, to the cache, then
+     * evicts the least recently used tiles until the cache is within its budget.
+     */
+    public synchronized void put(int zoomBucket, int tileX, int tileY, SingleTileLayer tile,
+                                 CairoImage image) {
+        Key key = new Key(zoomBucket, tileX, tileY);
+        Entry oldEntry = mEntries.remove(key);
+        if (oldEntry != null) {
+            mByteCount -= oldEntry.byteSize;
+            if (oldEntry.tile != tile)
+                oldEntry.tile.destroy();
+            oldEntry.releaseImage();
+        }
+
+        if (mRetainPixels)
+            image.retain();
+        Entry entry = new Entry(tile, mRetainPixels ? image : null, getByteSize(image));
+        mEntries.put(key, entry);
+        mByteCount += entry.byteSize;
+
+        trim();
+    }
+
+    /** Evicts every tile. */
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.tile.destroy();
+            entry.releaseImage();
+        }
+        mEntries.clear();
+        mByteCount = 0;
+    }
+
+    /* Evicts tiles in LRU order until we're within budget. The newest tile is never evicted. */
+    private void trim() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        int evictedCount = 0;
+        while (mByteCount > mByteBudget && mEntries.size() > 1) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            mByteCount -= entry.byteSize;
+            entry.tile.destroy();
+            entry.releaseImage();
+            evictedCount++;
+        }
+
+        if (evictedCount > 0)
+            Log.i(LOG_NAME, "Evicted " + evictedCount + " tiles, " + mByteCount + " bytes left");
+    }
+
+    private int getByteSize(CairoImage image) {
+        int bpp = CairoUtils.bitsPerPixelForCairoFormat(image.getFormat());
+        int textureSize = image.getWidth() * image.getHeight() * bpp / 8;
+        return mRetainPixels ? textureSize * 2 : textureSize;
+    }
+
+    private static class Key {
+        public final int zoomBucket, tileX, tileY;
+
+        public Key(int inZoomBucket, int inTileX, int inTileY) {
+            zoomBucket = inZoomBucket; tileX = inTileX; tileY = inTileY;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key otherKey = (Key)other;
+            return zoomBucket == otherKey.zoomBucket && tileX == otherKey.tileX &&
+                tileY == otherKey.tileY;
+        }
+
+        @Override
+        public int hashCode() { return (zoomBucket * 31 + tileX) * 31 + tileY; }
+    }
+
+    private static class Entry {
+        public final SingleTileLayer tile;
+        public final CairoImage image;
+        public final int byteSize;
+
+        public Entry(SingleTileLayer inTile, CairoImage inImage, int inByteSize) {
+            tile = inTile; image = inImage; byteSize = inByteSize;
+        }
+
+        public void releaseImage() {
+            if (image != null)
+                image.release();
+        }
+    }
+}
@@ -38,29 +38,55 @@
 package org.mozilla.gecko.gfx;
 
 import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.GLState;
 import org.mozilla.gecko.gfx.IntSize;
 import org.mozilla.gecko.gfx.Layer;
+import org.mozilla.gecko.gfx.TextureAtlas;
 import org.mozilla.gecko.gfx.TextureReaper;
+import org.mozilla.gecko.gfx.VertexBuffer;
+import android.graphics.Bitmap;
+import android.opengl.GLUtils;
 import android.util.Log;
 import javax.microedition.khronos.opengles.GL10;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 
 /**
  * Base class for tile layers, which encapsulate the logic needed to draw textured tiles in OpenGL
  * ES.
+ *
+ * A tile layer's texture lives until the layer is destroyed. Layers are painted on the UI thread,
+ * drawn on the GL thread, and may be destroyed on either, so those operations are synchronized.
  */
 public abstract class TileLayer extends Layer {
+    private static final String LOG_NAME = "TileLayer";
+
     private CairoImage mImage;
     private boolean mRepeat;
     private IntSize mSize;
     private int[] mTextureIDs;
+    private int mTextureGeneration;     /* The GL context that mTextureIDs belong to. */
+    private int mTextureFormat;
+    private TextureAtlas mAtlas;
+    private IntRect mAtlasRegion;
 
     private IntRect mTextureUploadRect;
     /* The rect that needs to be uploaded to the texture. */
 
+    private static final int GL_UNPACK_ROW_LENGTH = 0x0CF2;
+    /* From GL_EXT_unpack_subimage; not defined in GL10. */
+
+    private static boolean sUnpackSubimageSupported;
+    private static boolean sETC1Supported;
+    private static boolean sNPOTSupported;
+    private static ByteBuffer sStagingBuffer;
+    private static int sUploadedByteCount;
+    /*
+     * Shared by all tile layers, since textures are only ever uploaded on the GL thread. The
+     * staging buffer is reused across uploads and only grows.
+     */
+
     public TileLayer(boolean repeat) {
         super();
         mRepeat = repeat;
@@ -69,13 +95,124 @@ public abstract class TileLayer extends Layer {
 
     public IntSize getSize() { return mSize; }
 
+    /* Returns the size of the image waiting to be uploaded, or else of the texture, if any. */
+    protected synchronized IntSize getContentSize() {
+        if (mImage != null)
+            return new IntSize(mImage.getWidth(), mImage.getHeight());
+        return hasTexture() ? mSize : null;
+    }
+
+    /** Judges by the format of the image waiting to be uploaded, or else of the texture. */
+    @Override
+    public synchronized boolean isOpaque() {
+        if (mImage != null)
+            return CairoUtils.isOpaqueFormat(mImage.getFormat());
+        return hasOwnTexture() && CairoUtils.isOpaqueFormat(mTextureFormat);
+    }
+
+    /**
+     * The renderer calls this when the surface is created, to let us know whether we can upload
+     * a sub-rectangle of an image directly by setting the row length.
+     */
+    public static void setUnpackSubimageSupported(boolean supported) {
+        sUnpackSubimageSupported = supported;
+    }
+
+    /**
+     * The renderer calls this when the surface is created, to let us know whether the driver can
+     * take ETC1-compressed textures.
+     */
+    public static void setETC1Supported(boolean supported) {
+        sETC1Supported = supported;
+    }
+
+    public static boolean isETC1Supported() { return sETC1Supported; }
+
+    /**
+     * The renderer calls this when the surface is created, to let us know whether textures can
+     * have dimensions that aren't powers of two.
+     */
+    public static void setNPOTSupported(boolean supported) {
+        sNPOTSupported = supported;
+    }
+
+    public static boolean isNPOTSupported() { return sNPOTSupported; }
+
+    /** Returns the number of bytes uploaded to textures since the last call. */
+    public static int takeUploadedByteCount() {
+        int byteCount = sUploadedByteCount;
+        sUploadedByteCount = 0;
+        return byteCount;
+    }
+
     protected boolean repeats() { return mRepeat; }
-    protected int getTextureID() { return mTextureIDs[0]; }
 
+    protected int getTextureID() {
+        return (mAtlasRegion != null) ? mAtlas.getTextureID() : mTextureIDs[0];
+    }
+
+    private boolean hasTexture() { return hasOwnTexture() || mAtlasRegion != null; }
+
+    /*
+     * Returns true if we have a texture of our own in the current GL context. One left over from
+     * an older context is gone, and so is whatever was uploaded to it.
+     */
+    private boolean hasOwnTexture() {
+        return mTextureIDs != null &&
+               mTextureGeneration == TextureReaper.get().getContextGeneration();
+    }
+
+    /**
+     * Places this layer's texture in a region of the given atlas instead of a texture of its own.
+     * Must be called before the layer is first painted. Layers that repeat or whose images aren't
+     * ARGB32 can't be placed in an atlas; neither can layers too big to fit, which quietly fall
+     * back to their own texture.
+     */
+    public void setAtlas(TextureAtlas atlas) {
+        if (mRepeat)
+            throw new RuntimeException("Repeating layers can't be placed in an atlas");
+        mAtlas = atlas;
+    }
+
+    /*
+     * Textures are freed by destroy(), not by finalization. A layer that still has a texture by
+     * the time it's collected was leaked by its owner, so all we do here is report it.
+     */
     @Override
     protected void finalize() throws Throwable {
-        if (mTextureIDs != null)
-            TextureReaper.get().add(mTextureIDs);
+        try {
+            if (mTextureIDs != null)
+                Log.e(LOG_NAME, "Leaked texture " + mTextureIDs[0] + " of a layer that was never " +
+                      "destroyed");
+        } finally {
+            super.finalize();
+        }
+    }
+
+    /**
+     * Hands the texture backing this layer to the texture reaper and releases any image waiting
+     * to be uploaded. The layer draws nothing until it's painted again.
+     */
+    @Override
+    public synchronized void destroy() {
+        if (mTextureIDs != null) {
+            recycleTextures();
+            mTextureIDs = null;
+        }
+        if (mImage != null) {
+            mImage.release();
+            mImage = null;
+        }
+        mTextureUploadRect = null;
+    }
+
+    /*
+     * Returns our textures to the reaper's pool, so a tile of the same size can reuse them. The
+     * reaper drops them if they belong to an older GL context.
+     */
+    private void recycleTextures() {
+        TextureReaper.get().add(mTextureIDs, mSize.width, mSize.height, mTextureFormat,
+                                mTextureGeneration);
     }
 
     /**
@@ -85,34 +222,72 @@ public abstract class TileLayer extends Layer {
      */
     protected abstract void onTileDraw(GL10 gl);
 
-    @Override
-    protected void onDraw(GL10 gl) {
-        if (mImage == null)
-            return;
+    /**
+     * Uploads any image waiting to be uploaded, without drawing. Since the layer holds on to its
+     * image until then, owners of layers that won't be drawn for a while call this so that the
+     * image's buffer can be reused.
+     */
+    public synchronized void update(GL10 gl) {
         if (mTextureUploadRect != null)
             uploadTexture(gl);
+    }
 
-        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
-        gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-        gl.glPushMatrix();
+    @Override
+    protected synchronized void onDraw(GL10 gl) {
+        update(gl);
+        if (!hasTexture())
+            return;
 
-        onTileDraw(gl);
+        /* Every layer draws with both arrays, so they're left enabled between draws. */
+        GLState glState = GLState.get();
+        glState.setClientStateEnabled(gl, GL10.GL_VERTEX_ARRAY, true);
+        glState.setClientStateEnabled(gl, GL10.GL_TEXTURE_COORD_ARRAY, true);
+        glState.pushMatrix(gl);
 
-        gl.glPopMatrix();
-        gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+        if (mAtlasRegion == null) {
+            onTileDraw(gl);
+        } else {
+            /*
+             * Map texture coordinates in the unit square onto our region of the atlas. Any
+             * texture matrix changes the subclass makes are applied within the region.
+             */
+            FloatRect texCoordRect = mAtlas.getTexCoordRect(mAtlasRegion);
+            glState.matrixMode(gl, GL10.GL_TEXTURE);
+            glState.pushMatrix(gl);
+            glState.translate(gl, texCoordRect.x, texCoordRect.y);
+            glState.scale(gl, texCoordRect.width, texCoordRect.height);
+            glState.matrixMode(gl, GL10.GL_MODELVIEW);
+
+            onTileDraw(gl);
+
+            glState.matrixMode(gl, GL10.GL_TEXTURE);
+            glState.popMatrix(gl);
+            glState.matrixMode(gl, GL10.GL_MODELVIEW);
+        }
+
+        glState.popMatrix(gl);
     }
 
-    public void paintSubimage(CairoImage image, IntRect rect) {
+    /**
+     * Schedules the given rect of the image to be uploaded the next time the layer is drawn. The
+     * layer retains the image until then, so the caller is free to release its own reference.
+     */
+    public synchronized void paintSubimage(CairoImage image, IntRect rect) {
+        image.retain();
+        if (mImage != null)
+            mImage.release();
+
         mImage = image;
         mTextureUploadRect = rect;
 
         /*
-         * Assert that the image has a power-of-two size. OpenGL ES < 2.0 doesn't support NPOT
-         * textures and OpenGL ES doesn't seem to let us efficiently slice up a NPOT bitmap.
+         * Unless the driver takes NPOT textures, assert that the image has a power-of-two size.
+         * OpenGL ES 1.x doesn't support them without an extension, and OpenGL ES doesn't seem to
+         * let us efficiently slice up a NPOT bitmap.
          */
         int width = mImage.getWidth(), height = mImage.getHeight();
-        assert (width & (width - 1)) == 0;
-        assert (height & (height - 1)) == 0;
+        assert sNPOTSupported || (width & (width - 1)) == 0;
+        assert sNPOTSupported || (height & (height - 1)) == 0;
     }
 
     public void paintImage(CairoImage image) {
@@ -120,70 +295,231 @@ public abstract class TileLayer extends Layer {
     }
 
     private void uploadTexture(GL10 gl) {
-        boolean newTexture = mTextureIDs == null;
+        if (mAtlas != null) {
+            uploadToAtlas(gl);
+            return;
+        }
+
+        int width = mImage.getWidth(), height = mImage.getHeight();
+        int cairoFormat = mImage.getFormat();
+
+        /*
+         * If the image no longer matches our texture, or the texture went away with an older GL
+         * context, trade the texture in for one that does.
+         */
+        if (mTextureIDs != null && (!hasOwnTexture() || width != mSize.width ||
+                                    height != mSize.height || cairoFormat != mTextureFormat)) {
+            recycleTextures();
+            mTextureIDs = null;
+        }
+
+        boolean newTexture = mTextureIDs == null, pooledTexture = false;
         if (newTexture) {
             mTextureIDs = new int[1];
-            gl.glGenTextures(mTextureIDs.length, mTextureIDs, 0);
+            mTextureGeneration = TextureReaper.get().getContextGeneration();
+            mTextureIDs[0] = TextureReaper.get().obtain(width, height, cairoFormat);
+            pooledTexture = mTextureIDs[0] != 0;
+            if (!pooledTexture)
+                gl.glGenTextures(mTextureIDs.length, mTextureIDs, 0);
         }
 
-        int width = mImage.getWidth(), height = mImage.getHeight();
         mSize = new IntSize(width, height);
+        mTextureFormat = cairoFormat;
 
-        int cairoFormat = mImage.getFormat();
         int internalFormat = CairoUtils.cairoFormatToGLInternalFormat(cairoFormat);
-        int format = CairoUtils.cairoFormatToGLFormat(cairoFormat);
-        int type = CairoUtils.cairoFormatToGLType(cairoFormat);
+        boolean compressed = CairoUtils.isCompressedFormat(cairoFormat);
+        int format = 0, type = 0;
+        if (!compressed) {
+            format = CairoUtils.cairoFormatToGLFormat(cairoFormat);
+            type = CairoUtils.cairoFormatToGLType(cairoFormat);
+        }
 
-        gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureIDs[0]);
-        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
-        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        GLState.get().bindTexture(gl, mTextureIDs[0]);
+
+        /*
+         * Texture parameters stick to the texture, so they only need setting when we get one. A
+         * pooled texture may have come from a layer with a different repeat mode.
+         */
+        if (newTexture) {
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
 
-        int repeatMode = mRepeat ? GL10.GL_REPEAT : GL10.GL_CLAMP_TO_EDGE;
-        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, repeatMode);
-        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, repeatMode);
+            /* NPOT textures can only clamp in OpenGL ES 2.0; the shader does the repeating. */
+            boolean repeat = mRepeat && !GLState.get().isGLES20();
+            int repeatMode = repeat ? GL10.GL_REPEAT : GL10.GL_CLAMP_TO_EDGE;
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, repeatMode);
+            gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, repeatMode);
+        }
 
-        ByteBuffer buffer = mImage.lockBuffer();
-        try {
-            if (newTexture) {
-                /* The texture is new; we have to upload the whole image. */
-                gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, internalFormat, mSize.width, mSize.height, 0,
-                                format, type, buffer);
-            } else {
-                /*
-                 * The texture is already existing, so upload only the changed rect. We have to
-                 * widen to the full width of the texture because we can't count on the device
-                 * having support for GL_EXT_unpack_subimage, and going line-by-line is too slow.
-                 */
-                Buffer viewBuffer = buffer.slice();
-                int bpp = CairoUtils.bitsPerPixelForCairoFormat(cairoFormat) / 8;
-                viewBuffer.position(mTextureUploadRect.y * width * bpp);
-
-                gl.glTexSubImage2D(gl.GL_TEXTURE_2D,
-                                   0, 0, mTextureUploadRect.y, width, mTextureUploadRect.height,
-                                   format, type, viewBuffer);
+        /*
+         * Bitmap-backed images go straight from the bitmap to the texture. GLUtils can only upload
+         * a bitmap whole, so the entire image is uploaded even if only part of it changed.
+         */
+        Bitmap bitmap = mImage.lockBitmap();
+        if (bitmap != null) {
+            try {
+                if (newTexture && !pooledTexture)
+                    GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bitmap, 0);
+                else
+                    GLUtils.texSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+                sUploadedByteCount += getByteCount(width, height, cairoFormat);
+            } finally {
+                mImage.unlockBitmap();
             }
-        } finally {
-            mImage.unlockBuffer();
+        } else {
+            ByteBuffer buffer = mImage.lockBuffer();
+            try {
+                if (compressed) {
+                    /* Compressed images can't be updated piecemeal; upload the whole thing. */
+                    int byteCount = buffer.capacity();
+                    gl.glCompressedTexImage2D(GL10.GL_TEXTURE_2D, 0, internalFormat, width,
+                                              height, 0, byteCount, buffer);
+                    sUploadedByteCount += byteCount;
+                } else if (pooledTexture) {
+                    /*
+                     * The texture came from the pool and already has storage of the right size
+                     * and format, so just overwrite all of it.
+                     */
+                    uploadSubimage(gl, buffer, new IntRect(0, 0, width, height), format, type,
+                                   0, 0);
+                } else if (newTexture) {
+                    /* The texture is new; we have to upload the whole image. */
+                    gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, internalFormat, mSize.width,
+                                    mSize.height, 0, format, type, buffer);
+                    sUploadedByteCount += getByteCount(width, height, cairoFormat);
+                } else {
+                    /* The texture is already existing, so upload only the changed rect. */
+                    uploadSubimage(gl, buffer, mTextureUploadRect, format, type, 0, 0);
+                }
+            } finally {
+                mImage.unlockBuffer();
+            }
+        }
+
+        /* The texture now holds the pixels, so there's no need to keep the image alive. */
+        mImage.release();
+        mImage = null;
+        mTextureUploadRect = null;
+    }
+
+    private void uploadToAtlas(GL10 gl) {
+        int width = mImage.getWidth(), height = mImage.getHeight();
+        int cairoFormat = mImage.getFormat();
+        IntRect uploadRect = mTextureUploadRect;
+
+        if (mAtlasRegion == null) {
+            if (cairoFormat == CairoImage.FORMAT_ARGB32)
+                mAtlasRegion = mAtlas.allocate(width, height);
+            if (mAtlasRegion == null) {
+                Log.w("TileLayer", "Couldn't place a " + width + "x" + height + " image in the " +
+                      "atlas; using a separate texture");
+                mAtlas = null;
+                uploadTexture(gl);
+                return;
+            }
+            uploadRect = new IntRect(0, 0, width, height);
         }
 
+        mSize = new IntSize(width, height);
+        mAtlas.bind(gl);
+
+        Bitmap bitmap = mImage.lockBitmap();
+        if (bitmap != null) {
+            try {
+                GLUtils.texSubImage2D(GL10.GL_TEXTURE_2D, 0, mAtlasRegion.x, mAtlasRegion.y,
+                                      bitmap);
+                sUploadedByteCount += getByteCount(width, height, cairoFormat);
+            } finally {
+                mImage.unlockBitmap();
+            }
+        } else {
+            ByteBuffer buffer = mImage.lockBuffer();
+            try {
+                uploadSubimage(gl, buffer, uploadRect, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE,
+                               mAtlasRegion.x, mAtlasRegion.y);
+            } finally {
+                mImage.unlockBuffer();
+            }
+        }
+
+        mImage.release();
+        mImage = null;
         mTextureUploadRect = null;
     }
 
-    protected static FloatBuffer createBuffer(float[] values) {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(values.length * 4);
-        byteBuffer.order(ByteOrder.nativeOrder());
+    /*
+     * Uploads the given rect of the image to the currently bound texture, offset by the given
+     * amount within the texture.
+     */
+    private void uploadSubimage(GL10 gl, ByteBuffer buffer, IntRect rect, int format, int type,
+                                int offsetX, int offsetY) {
+        int width = mImage.getWidth(), cairoFormat = mImage.getFormat();
+        int bpp = CairoUtils.bitsPerPixelForCairoFormat(cairoFormat) / 8;
+        sUploadedByteCount += getByteCount(rect.width, rect.height, cairoFormat);
+
+        if (rect.x == 0 && rect.width == width) {
+            /* Full rows are contiguous in the image, so they can be uploaded as is. */
+            Buffer viewBuffer = buffer.slice();
+            viewBuffer.position(rect.y * width * bpp);
+            gl.glTexSubImage2D(gl.GL_TEXTURE_2D, 0, offsetX, offsetY + rect.y, width, rect.height,
+                               format, type, viewBuffer);
+            return;
+        }
+
+        if (sUnpackSubimageSupported) {
+            /* Let the driver step through the rows of the image itself. */
+            Buffer viewBuffer = buffer.slice();
+            viewBuffer.position((rect.y * width + rect.x) * bpp);
+            gl.glPixelStorei(GL_UNPACK_ROW_LENGTH, width);
+            gl.glTexSubImage2D(gl.GL_TEXTURE_2D, 0, offsetX + rect.x, offsetY + rect.y,
+                               rect.width, rect.height, format, type, viewBuffer);
+            gl.glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+            return;
+        }
+
+        /*
+         * Otherwise, repack the rows of the rect into the staging buffer. The renderer sets
+         * GL_UNPACK_ALIGNMENT to 1, so the rows are packed tightly.
+         */
+        int rowByteCount = rect.width * bpp;
+        ByteBuffer stagingBuffer = getStagingBuffer(rowByteCount * rect.height);
+
+        ByteBuffer source = buffer.duplicate();
+        for (int row = 0; row < rect.height; row++) {
+            int start = ((rect.y + row) * width + rect.x) * bpp;
+            source.limit(source.capacity());
+            source.position(start);
+            source.limit(start + rowByteCount);
+
+            stagingBuffer.position(row * rowByteCount);
+            stagingBuffer.put(source);
+        }
+        stagingBuffer.position(0);
+
+        gl.glTexSubImage2D(gl.GL_TEXTURE_2D, 0, offsetX + rect.x, offsetY + rect.y, rect.width,
+                           rect.height, format, type, stagingBuffer);
+    }
+
+    private static ByteBuffer getStagingBuffer(int capacity) {
+        if (sStagingBuffer == null || sStagingBuffer.capacity() < capacity)
+            sStagingBuffer = ByteBuffer.allocateDirect(capacity);
+        sStagingBuffer.clear();
+        return sStagingBuffer;
+    }
 
-        FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
-        floatBuffer.put(values);
-        floatBuffer.position(0);
-        return floatBuffer;
+    private static int getByteCount(int width, int height, int cairoFormat) {
+        return width * height * CairoUtils.bitsPerPixelForCairoFormat(cairoFormat) / 8;
     }
 
-    protected static void drawTriangles(GL10 gl, FloatBuffer vertexBuffer,
-                                        FloatBuffer texCoordBuffer, int count) {
-        gl.glVertexPointer(3, GL10.GL_FLOAT, 0, vertexBuffer);
-        gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, texCoordBuffer);
-        gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, count);
+    /*
+     * Draws a triangle strip with three-component vertices and two-component texture
+     * coordinates.
+     */
+    protected void drawTriangles(GL10 gl, VertexBuffer vertexBuffer, VertexBuffer texCoordBuffer,
+                                 int count) {
+        vertexBuffer.bind(gl, GL10.GL_VERTEX_ARRAY, 3);
+        texCoordBuffer.bind(gl, GL10.GL_TEXTURE_COORD_ARRAY, 2);
+        GLState.get().drawTriangleStrip(gl, count, mRepeat);
     }
 }
 
@@ -0,0 +1,235 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.CairoImage;
+import org.mozilla.gecko.gfx.FloatPoint;
+import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.GLState;
+import org.mozilla.gecko.gfx.IntPoint;
+import org.mozilla.gecko.gfx.IntRect;
+import org.mozilla.gecko.gfx.Layer;
+import org.mozilla.gecko.gfx.SingleTileLayer;
+import org.mozilla.gecko.gfx.TileCache;
+import javax.microedition.khronos.opengles.GL10;
+import java.util.ArrayList;
+
+/**
+ * A layer made up of a grid of fixed-size tiles, each of which has its own texture. Layer clients
+ * paint tiles individually, so that only the tiles that scrolling exposes need to be rasterized
+ * and uploaded.
+ *
+ * The tiles themselves live in a tile cache, keyed by the zoom bucket of the resolution they were
+ * rendered at, so tiles that scroll out of view stay around until the cache needs the room.
+ *
+ * Underneath the tiles, the layer can keep a low-resolution image of its entire contents. It's
+ * drawn first, so that zooming out or flinging past the painted tiles shows blurry content instead
+ * of the checkerboard while the sharp tiles are rendered. When opaque tiles cover the visible
+ * rect, it isn't drawn at all.
+ *
+ * Tiles are painted on the UI thread and drawn on the GL thread, so access to the tiles is
+ * synchronized. Newly painted tiles are uploaded on the next frame whether they're visible or not,
+ * so that their pixel buffers are given back promptly.
+ */
+public class TiledLayer extends Layer {
+    public static final int TILE_SIZE = 256;
+    /* NB: This must be a power of two due to the OpenGL ES 1.x restriction on NPOT textures. */
+
+    private TileCache mCache;
+    private int mZoomBucket;
+    private SingleTileLayer mLowResLayer;
+    private float mLowResScale;
+    private ArrayList<SingleTileLayer> mPendingTiles;   /* Painted, but maybe not uploaded yet. */
+
+    public TiledLayer(TileCache cache) {
+        super();
+        mCache = cache;
+        mZoomBucket = TileCache.getZoomBucket(1.0f);
+        mPendingTiles = new ArrayList<SingleTileLayer>();
+    }
+
+    public TileCache getCache() { return mCache; }
+
+    /**
+     * Sets the resolution that tiles are being rendered at, relative to the page. Tiles cached at
+     * other resolutions are kept, but aren't drawn.
+     */
+    public synchronized void setResolution(float zoomFactor) {
+        mZoomBucket = TileCache.getZoomBucket(zoomFactor);
+    }
+
+    /** Returns the rect, in layer coordinates, covered by the tile at the given grid position. */
+    public static IntRect getTileRect(int tileX, int tileY) {
+        return new IntRect(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+    }
+
+    /** Returns the grid positions of all tiles that intersect the given rect, in row order. */
+    public static ArrayList<IntPoint> getTilesInRect(FloatRect rect) {
+        ArrayList<IntPoint> tiles = new ArrayList<IntPoint>();
+        if (rect.width <= 0.0f || rect.height <= 0.0f)
+            return tiles;
+
+        int left = (int)Math.floor(rect.x / TILE_SIZE);
+        int top = (int)Math.floor(rect.y / TILE_SIZE);
+        int right = (int)Math.ceil(rect.getRight() / TILE_SIZE);
+        int bottom = (int)Math.ceil(rect.getBottom() / TILE_SIZE);
+
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++)
+                tiles.add(new IntPoint(x, y));
+        }
+        return tiles;
+    }
+
+    /** Returns the grid positions of the tiles in the given rect that haven't been painted yet. */
+    public synchronized ArrayList<IntPoint> getMissingTiles(FloatRect rect) {
+        ArrayList<IntPoint> tiles = getTilesInRect(rect);
+        ArrayList<IntPoint> missingTiles = new ArrayList<IntPoint>();
+        for (IntPoint tile : tiles) {
+            if (!mCache.contains(mZoomBucket, tile.x, tile.y))
+                missingTiles.add(tile);
+        }
+        return missingTiles;
+    }
+
+    /**
+     * Paints the low-resolution level. The image covers the whole layer, scaled down by the given
+     * factor.
+     */
+    public synchronized void paintLowResImage(CairoImage image, float scale) {
+        if (mLowResLayer == null)
+            mLowResLayer = new SingleTileLayer();
+        mLowResLayer.paintImage(image);
+        mLowResScale = scale;
+    }
+
+    public synchronized boolean hasLowResImage() { return mLowResLayer != null; }
+
+    /** Paints the tile at the given grid position with the given image. */
+    public synchronized void paintTile(int tileX, int tileY, CairoImage image) {
+        SingleTileLayer tile = mCache.get(mZoomBucket, tileX, tileY);
+        if (tile == null) {
+            tile = new SingleTileLayer();
+            IntRect tileRect = getTileRect(tileX, tileY);
+            tile.origin = new FloatPoint(tileRect.x, tileRect.y);
+        }
+
+        tile.paintImage(image);
+        mCache.put(mZoomBucket, tileX, tileY, tile, image);
+        mPendingTiles.add(tile);
+    }
+
+    /** Destroys the low-resolution level and every cached tile. */
+    @Override
+    public synchronized void destroy() {
+        if (mLowResLayer != null) {
+            mLowResLayer.destroy();
+            mLowResLayer = null;
+        }
+        mCache.clear();
+        mPendingTiles.clear();
+    }
+
+    @Override
+    protected synchronized void onDraw(GL10 gl) {
+        uploadPendingTiles(gl);
+        drawLowRes(gl);
+        for (SingleTileLayer tile : mCache.getTiles(mZoomBucket))
+            tile.draw(gl);
+    }
+
+    /** Draws only the tiles that intersect the visible rect. */
+    @Override
+    protected synchronized void onDraw(GL10 gl, FloatRect visibleRect) {
+        /* The page layer normally sits at the origin, in which case there's nothing to undo. */
+        if (origin.x != 0.0f || origin.y != 0.0f) {
+            visibleRect = new FloatRect(visibleRect.x - origin.x, visibleRect.y - origin.y,
+                                        visibleRect.width, visibleRect.height);
+        }
+
+        uploadPendingTiles(gl);
+        if (!tilesCoverRect(visibleRect))
+            drawLowRes(gl);
+        for (IntPoint position : getTilesInRect(visibleRect)) {
+            SingleTileLayer tile = mCache.get(mZoomBucket, position.x, position.y);
+            if (tile != null)
+                tile.draw(gl);
+        }
+    }
+
+    @Override
+    public synchronized boolean coversRect(FloatRect rect) {
+        FloatRect layerRect = new FloatRect(rect.x - origin.x, rect.y - origin.y, rect.width,
+                                            rect.height);
+        if (tilesCoverRect(layerRect))
+            return true;
+        return mLowResLayer != null && mLowResLayer.coversRect(layerRect.scaleAll(mLowResScale));
+    }
+
+    /* Returns true if opaque tiles at the current resolution cover the given rect. */
+    private boolean tilesCoverRect(FloatRect rect) {
+        for (IntPoint position : getTilesInRect(rect)) {
+            SingleTileLayer tile = mCache.get(mZoomBucket, position.x, position.y);
+            if (tile == null)
+                return false;
+
+            FloatRect tileRect = new FloatRect(getTileRect(position.x, position.y));
+            if (!tile.coversRect(tileRect.intersect(rect)))
+                return false;
+        }
+        return true;
+    }
+
+    /* Tiles that have been evicted since they were painted are already destroyed; that's fine. */
+    private void uploadPendingTiles(GL10 gl) {
+        for (SingleTileLayer tile : mPendingTiles)
+            tile.update(gl);
+        mPendingTiles.clear();
+    }
+
+    private void drawLowRes(GL10 gl) {
+        if (mLowResLayer == null)
+            return;
+
+        GLState.get().pushMatrix(gl);
+        GLState.get().scale(gl, 1.0f / mLowResScale, 1.0f / mLowResScale);
+        mLowResLayer.draw(gl);
+        GLState.get().popMatrix(gl);
+    }
+}
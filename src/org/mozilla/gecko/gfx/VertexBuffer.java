@@ -0,0 +1,136 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Mozilla Android code.
+ *
+ * The Initial Developer of the Original Code is Mozilla Foundation.
+ * Portions created by the Initial Developer are Copyright (C) 2009-2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Patrick Walton <pcwalton@mozilla.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.gecko.gfx.GLState;
+import org.mozilla.gecko.gfx.TextureReaper;
+import javax.microedition.khronos.opengles.GL10;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * An array of vertex attributes that lives on the GPU when it can.
+ *
+ * With buffer objects (OpenGL ES 1.1 and up), the data is uploaded once and the driver doesn't
+ * have to copy and validate client memory on every draw call. Without them, the data is drawn
+ * from a direct buffer in client memory, as before. Either way the client copy is kept, since
+ * buffer objects die with the GL context and have to be recreated from it.
+ *
+ * The values can be changed from any thread with update(); the GL thread uploads the new values
+ * in place the next time the buffer is bound.
+ */
+public class VertexBuffer {
+    private static volatile int sContextGeneration;
+
+    private FloatBuffer mValues;
+    private int mBufferID;
+    private int mBufferGeneration;      /* The context that mBufferID belongs to. */
+    private boolean mDirty;
+
+    public VertexBuffer(float[] values) {
+        mValues = createBuffer(values.length);
+        update(values);
+    }
+
+    /**
+     * The renderer calls this when a surface is created. Buffer objects made for the old surface
+     * are gone, so every buffer is re-uploaded the next time it's bound.
+     */
+    public static void surfaceCreated() {
+        sContextGeneration++;
+    }
+
+    /** Replaces the values, reusing the existing storage if the count hasn't changed. */
+    public synchronized void update(float[] values) {
+        if (mValues.capacity() != values.length)
+            mValues = createBuffer(values.length);
+
+        mValues.clear();
+        mValues.put(values);
+        mValues.position(0);
+        mDirty = true;
+    }
+
+    /**
+     * Points the vertex or texture coordinate array (GL_VERTEX_ARRAY or GL_TEXTURE_COORD_ARRAY)
+     * at this buffer, with the given number of components per vertex. Must be called on the GL
+     * thread.
+     */
+    public synchronized void bind(GL10 gl, int array, int componentCount) {
+        GLState glState = GLState.get();
+        if (!glState.supportsBufferObjects()) {
+            glState.setArrayPointer(gl, array, componentCount, mValues);
+            return;
+        }
+
+        if (mBufferID == 0 || mBufferGeneration != sContextGeneration) {
+            mBufferID = glState.genBuffer(gl);
+            mBufferGeneration = sContextGeneration;
+
+            glState.bindArrayBuffer(gl, mBufferID);
+            glState.bufferData(gl, mValues.capacity() * 4, mValues);
+            mDirty = false;
+        } else {
+            glState.bindArrayBuffer(gl, mBufferID);
+            if (mDirty) {
+                glState.bufferSubData(gl, mValues.capacity() * 4, mValues);
+                mDirty = false;
+            }
+        }
+
+        glState.setArrayPointer(gl, array, componentCount);
+    }
+
+    /**
+     * Hands the buffer object to the texture reaper for deletion. The buffer can still be bound
+     * afterward, in which case a new buffer object is made.
+     */
+    public synchronized void destroy() {
+        if (mBufferID != 0 && mBufferGeneration == sContextGeneration)
+            TextureReaper.get().addBuffer(mBufferID);
+        mBufferID = 0;
+    }
+
+    private static FloatBuffer createBuffer(int count) {
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(count * 4);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        return byteBuffer.asFloatBuffer();
+    }
+}
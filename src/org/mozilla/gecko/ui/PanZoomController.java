@@ -40,6 +40,7 @@ package org.mozilla.gecko.ui;
 import org.json.JSONObject;
 import org.mozilla.gecko.gfx.FloatPoint;
 import org.mozilla.gecko.gfx.FloatRect;
+import org.mozilla.gecko.gfx.FrameScheduler;
 import org.mozilla.gecko.gfx.IntPoint;
 import org.mozilla.gecko.gfx.IntRect;
 import org.mozilla.gecko.gfx.IntSize;
@@ -50,8 +51,6 @@ import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /*
  * Handles the kinetic scrolling and zooming physics for a layer controller.
@@ -70,6 +69,8 @@ public class PanZoomController
     private static final float FRICTION = 0.97f;
     // Animation stops if the velocity is below this value.
     private static final float STOPPED_THRESHOLD = 4.0f;
+    // A fling stops on an axis once friction brings its velocity below this value.
+    private static final float FLING_STOPPED_THRESHOLD = 0.1f;
     // The percentage of the surface which can be overscrolled before it must snap back.
     private static final float SNAP_LIMIT = 0.75f;
     // The rate of deceleration when the surface has overscrolled.
@@ -79,6 +80,10 @@ public class PanZoomController
     // The number of subdivisions we should consider when plotting the ease-out transition. Higher
     // values make the animation more accurate, but slower to plot.
     private static final int SUBDIVISION_COUNT = 1000;
+    // Velocities are measured in pixels per frame at this rate, whatever the actual frame rate.
+    private static final long NANOS_PER_FRAME = 1000000000L / 60L;
+    // The most frames' worth of motion that a fling will make up for after a stall.
+    private static final float MAX_FRAMES_PER_STEP = 4.0f;
 
     // The surface is still scrolling.
     private static final int FLING_STATE_SCROLLING = 0;
@@ -86,7 +91,7 @@ public class PanZoomController
     private static final int FLING_STATE_SNAPPING = 1;
 
     private long mLastTimestamp;
-    private Timer mFlingTimer;
+    private FlingCallback mFlingCallback;
     private Axis mX, mY;
     /* The span at the first zoom event (in unzoomed page coordinates). */
     private float mInitialZoomSpan;
@@ -108,6 +113,7 @@ public class PanZoomController
     public PanZoomController(LayerController controller) {
         mController = controller;
         mX = new Axis(); mY = new Axis();
+        mFlingCallback = new FlingCallback();
         mState = PanZoomState.NOTHING;
 
         populatePositionAndLength();
@@ -127,6 +133,27 @@ public class PanZoomController
         populatePositionAndLength();
     }
 
+    /**
+     * Returns the current velocity, in layer pixels. While the user pans, this is the distance
+     * moved between the last two touch events; during a fling, it's the distance moved per frame.
+     */
+    public FloatPoint getVelocity() {
+        return new FloatPoint(mX.velocity, mY.velocity);
+    }
+
+    /** Returns true if the surface is still moving after the user lifted their finger. */
+    public boolean isFlinging() {
+        return mState == PanZoomState.FLING;
+    }
+
+    /**
+     * Returns the distance the viewport will still travel before the current fling comes to
+     * rest, not counting any bounce off the edges of the page.
+     */
+    public FloatPoint getFlingDisplacement() {
+        return new FloatPoint(mX.getFlingDisplacement(), mY.getFlingDisplacement());
+    }
+
     /*
      * Panning/scrolling
      */
@@ -134,10 +161,7 @@ public class PanZoomController
     private boolean onTouchStart(MotionEvent event) {
         switch (mState) {
         case FLING:
-            if (mFlingTimer != null) {
-                mFlingTimer.cancel();
-                mFlingTimer = null;
-            }
+            getFrameScheduler().removeFrameCallback(mFlingCallback);
             // fall through
         case NOTHING:
             mState = PanZoomState.TOUCHING;
@@ -248,15 +272,13 @@ public class PanZoomController
 
         mX.displace(); mY.displace();
 
-        if (mFlingTimer != null)
-            mFlingTimer.cancel();
-
         mX.startFling(); mY.startFling();
 
-        mFlingTimer = new Timer();
-        mFlingTimer.scheduleAtFixedRate(new TimerTask() {
-            public void run() { mController.post(new FlingRunnable()); }
-        }, 0, 1000L/60L);
+        mFlingCallback.start();
+    }
+
+    private FrameScheduler getFrameScheduler() {
+        return mController.getView().getFrameScheduler();
     }
 
     private void updatePosition() {
@@ -279,11 +301,28 @@ public class PanZoomController
         mY.setViewportLength(visibleRect.height);
     }
 
-    // The callback that performs the fling animation.
-    private class FlingRunnable implements Runnable {
-        public void run() {
+    // The callback that performs the fling animation, once per frame. Each step moves the
+    // surface by however much time has passed since the last frame, so the fling covers the
+    // same distance no matter how the frames are spaced.
+    private class FlingCallback implements FrameScheduler.FrameCallback {
+        private long mLastFrameTime;
+
+        public void start() {
+            mLastFrameTime = 0;
+            getFrameScheduler().postFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            float frames = 1.0f;
+            if (mLastFrameTime != 0) {
+                frames = (float)(frameTimeNanos - mLastFrameTime) / NANOS_PER_FRAME;
+                frames = Math.max(0.0f, Math.min(frames, MAX_FRAMES_PER_STEP));
+            }
+            mLastFrameTime = frameTimeNanos;
+            long frameTimeMillis = frameTimeNanos / 1000000L;
+
             populatePositionAndLength();
-            mX.advanceFling(); mY.advanceFling();
+            mX.advanceFling(frames, frameTimeMillis); mY.advanceFling(frames, frameTimeMillis);
 
             // If both X and Y axes are overscrolled, we have to wait until both axes have stopped
             // to snap back to avoid a jarring effect.
@@ -293,30 +332,25 @@ public class PanZoomController
                 (mY.getOverscroll() == Axis.Overscroll.PLUS || mY.getOverscroll() == Axis.Overscroll.MINUS))
             {
                 if (waitingToSnapX && waitingToSnapY) {
-                    mX.startSnap(); mY.startSnap();
+                    mX.startSnap(frameTimeMillis); mY.startSnap(frameTimeMillis);
                 }
             } else {
                 if (waitingToSnapX)
-                    mX.startSnap();
+                    mX.startSnap(frameTimeMillis);
                 if (waitingToSnapY)
-                    mY.startSnap();
+                    mY.startSnap(frameTimeMillis);
             }
 
-            mX.displace(); mY.displace();
+            mX.displace(frames); mY.displace(frames);
             updatePosition();
 
             if (mX.getFlingState() == Axis.FlingStates.STOPPED &&
                     mY.getFlingState() == Axis.FlingStates.STOPPED) {
-                stop();
+                mState = PanZoomState.NOTHING;
+                return;
             }
-        }
 
-        private void stop() {
-            mState = PanZoomState.NOTHING;
-            if (mFlingTimer != null) {
-                mFlingTimer.cancel();
-                mFlingTimer = null;
-            }
+            getFrameScheduler().postFrameCallback(this);
         }
     }
 
@@ -392,28 +426,28 @@ public class PanZoomController
 
         public void startFling() { mFlingState = FlingStates.SCROLLING; }
 
-        // Advances a fling animation by one step.
-        public void advanceFling() {
+        // Advances a fling animation by the given number of frames, which may be fractional.
+        public void advanceFling(float frames, long frameTimeMillis) {
             switch (mFlingState) {
             case SCROLLING:
-                scroll();
+                scroll(frames);
                 return;
             case WAITING_TO_SNAP:
                 // We don't do anything until the controller switches us into the snapping state.
                 return;
             case SNAPPING:
-                snap();
+                snap(frameTimeMillis);
                 return;
             }
         }
 
-        // Performs one frame of a scroll operation if applicable.
-        private void scroll() {
+        // Performs the given number of frames of a scroll operation if applicable.
+        private void scroll(float frames) {
             // If we aren't overscrolled, just apply friction.
             float excess = getExcess();
             if (excess == 0.0f) {
-                velocity *= FRICTION;
-                if (Math.abs(velocity) < 0.1f) {
+                velocity *= (float)Math.pow(FRICTION, frames);
+                if (Math.abs(velocity) < FLING_STOPPED_THRESHOLD) {
                     velocity = 0.0f;
                     mFlingState = FlingStates.STOPPED;
                 }
@@ -422,10 +456,12 @@ public class PanZoomController
 
             // Otherwise, decrease the velocity linearly.
             float elasticity = 1.0f - excess / (mViewportLength * SNAP_LIMIT);
+            elasticity = (float)Math.pow(Math.max(elasticity, 0.0f), frames);
+            float decel = OVERSCROLL_DECEL_RATE * frames;
             if (getOverscroll() == Overscroll.MINUS)
-                velocity = Math.min((velocity + OVERSCROLL_DECEL_RATE) * elasticity, 0.0f);
+                velocity = Math.min((velocity + decel) * elasticity, 0.0f);
             else // must be Overscroll.PLUS
-                velocity = Math.max((velocity - OVERSCROLL_DECEL_RATE) * elasticity, 0.0f);
+                velocity = Math.max((velocity - decel) * elasticity, 0.0f);
 
             if (Math.abs(velocity) < 0.3f) {
                 velocity = 0.0f;
@@ -433,14 +469,30 @@ public class PanZoomController
             }
         }
 
+        // Returns the distance that friction will let this axis scroll before it stops. Velocity
+        // decays by FRICTION every frame until it drops below FLING_STOPPED_THRESHOLD, so the
+        // distance is the sum of a finite geometric series.
+        public float getFlingDisplacement() {
+            float speed = Math.abs(velocity);
+            if (mFlingState != FlingStates.SCROLLING || speed < FLING_STOPPED_THRESHOLD)
+                return 0.0f;
+
+            int frames = (int)Math.floor(Math.log(FLING_STOPPED_THRESHOLD / speed) /
+                                         Math.log(FRICTION));
+            float decay = (float)Math.pow(FRICTION, frames);
+            return velocity * FRICTION * (1.0f - decay) / (1.0f - FRICTION);
+        }
+
         // Starts a snap-into-place operation.
-        public void startSnap() {
+        public void startSnap(long frameTimeMillis) {
             switch (getOverscroll()) {
             case MINUS:
-                mSnapAnim = new EaseOutAnimation(viewportPos, viewportPos + getExcess());
+                mSnapAnim = new EaseOutAnimation(viewportPos, viewportPos + getExcess(),
+                                                 frameTimeMillis);
                 break;
             case PLUS:
-                mSnapAnim = new EaseOutAnimation(viewportPos, viewportPos - getExcess());
+                mSnapAnim = new EaseOutAnimation(viewportPos, viewportPos - getExcess(),
+                                                 frameTimeMillis);
                 break;
             default:
                 throw new RuntimeException("Not overscrolled at startSnap()");
@@ -450,8 +502,8 @@ public class PanZoomController
         }
 
         // Performs one frame of a snap-into-place operation.
-        private void snap() {
-            mSnapAnim.advance();
+        private void snap(long frameTimeMillis) {
+            mSnapAnim.advance(frameTimeMillis);
             viewportPos = mSnapAnim.getPosition();
 
             if (mSnapAnim.getFinished()) {
@@ -462,6 +514,10 @@ public class PanZoomController
 
         // Performs displacement of the viewport position according to the current velocity.
         public void displace() { viewportPos += velocity; }
+
+        // Performs the displacement that the current velocity causes over the given number of
+        // frames.
+        public void displace(float frames) { viewportPos += velocity * frames; }
     }
 
     private static class EaseOutAnimation {
@@ -472,11 +528,11 @@ public class PanZoomController
         private long mTimestamp;
         private boolean mFinished;
 
-        public EaseOutAnimation(float position, float dest) {
+        public EaseOutAnimation(float position, float dest, long timestamp) {
             mPosition = mOrigin = position;
             mDest = dest;
             mFrames = new float[SNAP_TIME];
-            mTimestamp = System.currentTimeMillis();
+            mTimestamp = timestamp;
             mFinished = false;
             plot(position, dest, mFrames);
         }
@@ -484,8 +540,8 @@ public class PanZoomController
         public float getPosition() { return mPosition; }
         public boolean getFinished() { return mFinished; }
 
-        private void advance() {
-            int frame = (int)(System.currentTimeMillis() - mTimestamp);
+        private void advance(long timestamp) {
+            int frame = (int)(timestamp - mTimestamp);
             if (frame >= SNAP_TIME) {
                 mPosition = mDest;
                 mFinished = true;